@@ -19,6 +19,48 @@
 // 10. Exception Handling
 // 11. File Input/Output (I/O)
 // 12. Generics
+// 13. Concurrent Data Structures
+// 14. Locks, VarHandles and the Java Memory Model
+// 15. JIT Compilation and Polymorphism
+// 16. Memory Management and Garbage Collection
+// 17. Instrumentation with JFR Events and JMX
+// 18. Startup Time
+// 19. Binary Serialization
+// 20. Networking and Non-Blocking I/O
+// 21. Reactive Streams and Backpressure
+// 22. Data-Oriented Design
+// 23. Running the Reference
+
+// ---------------------------------------------------------------------------------
+// Imports
+// ---------------------------------------------------------------------------------
+
+// Every chapter is a class with its own 'main' method, all kept in this one file.
+// Imports must come before the first class; these cover every chapter.
+// See chapter 23 for compiling and running the chapters.
+
+import java.io.*;
+import java.lang.invoke.*;
+import java.lang.management.*;
+import java.lang.reflect.*;
+import java.net.*;
+import java.net.http.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.util.regex.*;
+import java.util.stream.*;
+import javax.management.*;
+import javax.tools.*;
+import jdk.jfr.*;
+import jdk.jfr.consumer.*;
 
 // ---------------------------------------------------------------------------------
 // 1. Introduction to Java
@@ -36,7 +78,8 @@
 // - Security: Built-in security features
 
 // Getting Started:
-// - Install JDK (Java Development Kit)
+// - Install JDK (Java Development Kit), version 21 or later for this file: it uses
+//   record patterns, pattern matching for switch, virtual threads and Thread.threadId()
 // - Set up JAVA_HOME environment variable
 // - Use 'javac' to compile: javac MyProgram.java
 // - Use 'java' to run: java MyProgram
@@ -66,7 +109,10 @@
 // - Access Modifiers: Keywords like public, private, protected to control accessibility.
 
 // Example Program:
-public class HelloWorld { // Class name must match file name 'HelloWorld.java'
+// In its own file this is 'public class HelloWorld', and a public class must be saved in a
+// file of the same name, 'HelloWorld.java'. This reference keeps every chapter in one file,
+// so its classes are declared without 'public'.
+class HelloWorld {
     public static void main(String[] args) { // Entry point
         System.out.println("Hello, World!"); // Print to console
     }
@@ -102,9 +148,9 @@ class VariablesAndDataTypes {
         */
         String stringVariable = "Hello, World!";
         int[] numbers = {1, 2, 3};
-        Integer num = new Integer(10);
-        Double dbl = new Double(3.14);
-        JavaReference javaReference = new JavaReference();
+        Integer num = Integer.valueOf(10);
+        Double dbl = Double.valueOf(3.14);
+        HelloWorld helloWorld = new HelloWorld();
 
         /*
         * Type Conversion (Casting):
@@ -314,7 +360,168 @@ class ControlFlowStatements {
                 return a * b;
             }
         }
+        System.out.println("3 * 4 = " + new ReturnStatement().multiply(3, 4));
+    }
+}
+
+// Control Flow Under the Hood:
+// How a branch or switch is compiled decides how fast it runs. The CPU guesses the
+// outcome of each branch before it is known (branch prediction); a wrong guess costs
+// ~10-20 cycles while the pipeline is flushed.
+
+class ControlFlowPerformance {
+
+    /*
+    * Switch Expressions:
+    * 'case ->' never falls through and the switch yields a value.
+    */
+    static String describe(int choice) {
+        return switch (choice) {
+            case 1 -> "Choice is 1";
+            case 2, 3 -> "Choice is 2 or 3";
+            default -> "Invalid choice";
+        };
+    }
+
+    /*
+    * tableswitch vs lookupswitch:
+    * Dense case values compile to 'tableswitch', a jump table indexed by the value (O(1)).
+    * Sparse case values compile to 'lookupswitch', a sorted key list searched in O(log n).
+    * Inspect the bytecode with: javap -c ControlFlowPerformance
+    */
+    static int dense(int day) {
+        switch (day) { // tableswitch
+            case 1: return 10;
+            case 2: return 20;
+            case 3: return 30;
+            case 4: return 40;
+            default: return 0;
+        }
+    }
+
+    static int sparse(int code) {
+        switch (code) { // lookupswitch
+            case 1: return 10;
+            case 100: return 20;
+            case 10_000: return 30;
+            case 1_000_000: return 40;
+            default: return 0;
+        }
+    }
+
+    /*
+    * String Switch:
+    * Compiled into a lookupswitch on hashCode(), then equals() to rule out
+    * collisions, then a second tableswitch on the matched index.
+    * String.hashCode() is cached, so repeated switches on the same string are cheap.
+    */
+    static int httpMethodCost(String method) {
+        return switch (method) {
+            case "GET" -> 1;
+            case "POST" -> 2;
+            case "DELETE" -> 3;
+            default -> 0;
+        };
+    }
+
+    /*
+    * Pattern Matching over Records and Sealed Types:
+    * Record patterns deconstruct the record in the case label.
+    * With a sealed interface the switch is exhaustive, no default needed,
+    * and adding a new permitted type becomes a compile error here.
+    */
+    sealed interface Grade permits Passed, Failed, Absent {}
+    record Passed(int score) implements Grade {}
+    record Failed(int score) implements Grade {}
+    record Absent() implements Grade {}
+
+    static String report(Grade grade) {
+        return switch (grade) {
+            case Passed(int score) when score >= 90 -> "Excellent: " + score;
+            case Passed(int score) -> "Passed: " + score;
+            case Failed(int score) -> "Failed: " + score;
+            case Absent() -> "Absent";
+        };
+    }
+
+    /*
+    * Branchless Rewrites:
+    * Replace unpredictable branches with arithmetic. Math.max is an intrinsic
+    * (a conditional move), and the bitwise operators from chapter 4 can
+    * turn a comparison into a mask: for a long x, (x >> 63) is -1 when x < 0,
+    * else 0. Subtracting two ints in long keeps the sign of the difference
+    * correct for every input, an int subtraction can overflow.
+    */
+    static long sumAboveBranchy(int[] data, int threshold) {
+        long sum = 0;
+        for (int value : data) {
+            if (value >= threshold) { // Unpredictable on random data
+                sum += value;
+            }
+        }
+        return sum;
+    }
+
+    static long sumAboveBranchless(int[] data, int threshold) {
+        long sum = 0;
+        for (int value : data) {
+            // The difference in long cannot overflow, unlike int (e.g. Integer.MIN_VALUE - 1)
+            long mask = ~(((long) value - threshold) >> 63); // -1 if value >= threshold, else 0
+            sum += value & mask;
+        }
+        return sum;
+    }
+
+    static int clampBranchy(int value, int min, int max) {
+        if (value < min) {
+            return min;
+        } else if (value > max) {
+            return max;
+        }
+        return value;
+    }
+
+    static int clampBranchless(int value, int min, int max) {
+        return Math.min(Math.max(value, min), max);
+    }
+
+    public static void main(String[] args) {
+        System.out.println(describe(2));
+        System.out.println(dense(3) + sparse(10_000) + httpMethodCost("POST"));
+        System.out.println(report(new Passed(95)));
+        System.out.println(report(new Failed(40)));
+        System.out.println("Clamp: " + clampBranchy(150, 0, 100) + " " + clampBranchless(150, 0, 100));
 
+        /*
+        * Sorted vs Unsorted Branch Prediction:
+        * The same loop over the same values, once in random order and once sorted.
+        * Sorted data makes the branch predictable (all false, then all true).
+        * C2 sometimes turns the branchy loop into a conditional move by itself,
+        * then sorted and unsorted run equally fast. The branchless version
+        * does not depend on that decision.
+        */
+        int size = 10_000_000;
+        int[] unsorted = new Random(42).ints(size, 0, 256).toArray();
+        int[] sorted = unsorted.clone();
+        Arrays.sort(sorted);
+        int threshold = 128;
+
+        Map<String, LongSupplier> variants = new LinkedHashMap<>();
+        variants.put("Branchy, unsorted", () -> sumAboveBranchy(unsorted, threshold));
+        variants.put("Branchy, sorted", () -> sumAboveBranchy(sorted, threshold));
+        variants.put("Branchless, unsorted", () -> sumAboveBranchless(unsorted, threshold));
+        variants.put("Branchless, sorted", () -> sumAboveBranchless(sorted, threshold));
+
+        for (Map.Entry<String, LongSupplier> variant : variants.entrySet()) {
+            long result = 0;
+            long best = Long.MAX_VALUE;
+            for (int run = 0; run < 10; run++) { // Best of 10, the first runs are warm-up
+                long start = System.nanoTime();
+                result = variant.getValue().getAsLong();
+                best = Math.min(best, System.nanoTime() - start);
+            }
+            System.out.printf("%-22s %8.2f ms (sum %d)%n", variant.getKey(), best / 1e6, result);
+        }
     }
 }
 
@@ -322,7 +529,7 @@ class ControlFlowStatements {
 // 6. Arrays
 // ---------------------------------------------------------------------------------
 
-class Arrays {
+class JavaArrays { // Not named Arrays, that would hide java.util.Arrays
     public static void main(String[] args) {
 
         /*
@@ -369,7 +576,7 @@ class Arrays {
 // 7. Collections
 // ---------------------------------------------------------------------------------
 
-class Collections {
+class JavaCollections { // Not named Collections, that would hide java.util.Collections
     public static void main(String[] args) {
 
         /*
@@ -392,17 +599,17 @@ class Collections {
         * Set: HashSet
         * Stores unique elements, without maintaining any order.
         */
-        Set<String> hashSet = new hashSet<>();
-        linkedList.add("one");
-        linkedList.add("two");
+        Set<String> hashSet = new HashSet<>();
+        hashSet.add("one");
+        hashSet.add("two");
 
         /*
         * Set: TreeSet
         * Sorted set that stores unique elements in ascending order.
         */
         Set<String> treeSet = new TreeSet<>();
-        linkedList.add("one");
-        linkedList.add("two");
+        treeSet.add("one");
+        treeSet.add("two");
 
         /*
         * Map: HashMap
@@ -457,7 +664,7 @@ class Collections {
         // Sort
         Collections.sort(numbers);
         // Sum
-        int sum = Collections.sum(numbers);
+        int sum = numbers.stream().mapToInt(Integer::intValue).sum();
         System.out.println("Sum of Numbers: " + sum);
         // Reverse
         Collections.reverse(numbers);
@@ -470,41 +677,45 @@ class Collections {
 // ---------------------------------------------------------------------------------
 
 class Methods {
-    public static void main(String[] args) {
 
-        /*
-        * Method Declaration:
-        * Methods are reusable blocks of code.
-        * Syntax: <access modifier> <return type> <method name>(<parameter list>)
-        */
-        public void greet() {
-            System.out.println("Hello, world!");
-        }
-        
-        /*
-        * Access modifiers:
-        * Access modifiers define the accessibility of a method.
-        *  - public: Accessible from any class
-        *  - private: Accessible only within the same class
-        *  - protected: Accessible within the same package and subclasses
-        */
-        protected int substract(int x, int y) {
-            return x - y;
-        }
-        
-        /*
-        * Recursion:
-        * Method calls itself, known as recursion.
-        */
-        public int factorial(int n) {
-            if (n == 0 || n == 1) {
-                return 1;
-            } else {
-                return n * factorial(n - 1);
-            }
+    /*
+    * Method Declaration:
+    * Methods are reusable blocks of code, declared inside a class.
+    * Syntax: <access modifier> <return type> <method name>(<parameter list>)
+    */
+    public void greet() {
+        System.out.println("Hello, world!");
+    }
+
+    /*
+    * Access modifiers:
+    * Access modifiers define the accessibility of a method.
+    *  - public: Accessible from any class
+    *  - private: Accessible only within the same class
+    *  - protected: Accessible within the same package and subclasses
+    */
+    protected int substract(int x, int y) {
+        return x - y;
+    }
+
+    /*
+    * Recursion:
+    * Method calls itself, known as recursion.
+    */
+    public int factorial(int n) {
+        if (n == 0 || n == 1) {
+            return 1;
+        } else {
+            return n * factorial(n - 1);
         }
-        
+    }
 
+    public static void main(String[] args) {
+        // Calling methods on an instance
+        Methods methods = new Methods();
+        methods.greet();
+        System.out.println("7 - 2 = " + methods.substract(7, 2)); // 5
+        System.out.println("5! = " + methods.factorial(5));       // 120
     }
 }
 
@@ -635,7 +846,7 @@ class OOP {
             abstract void operate();
         }
 
-        class Car extends Vehicle {
+        class Automobile extends Vehicle { // 'Car' is already taken by the class above
             @Override
             void operate() {
                 System.out.println("Operating Car");
@@ -649,7 +860,7 @@ class OOP {
             }
         }
 
-        Vehicle myCar = new Car();
+        Vehicle myCar = new Automobile();
         myCar.operate(); // Operating Car
 
         Vehicle myMotorcycle = new Motorcycle();
@@ -751,6 +962,181 @@ class ExceptionHandling {
             }
 
         }
+        ThrowExceptionExample.main(args);
+    }
+}
+
+// The Cost of Exceptions:
+// Creating an exception calls fillInStackTrace(), which walks the whole call stack.
+// The deeper the stack, the slower every 'new InvalidAgeException(...)'. For expected
+// failures such as input validation, skip the stack trace or do not throw at all.
+
+class ExceptionCost {
+
+    /*
+    * Regular Exception:
+    * Captures the stack trace on construction (the expensive part).
+    */
+    static class InvalidAgeException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public InvalidAgeException(String message) {
+            super(message);
+        }
+    }
+
+    /*
+    * Stackless Exception:
+    * writableStackTrace=false skips fillInStackTrace(),
+    * enableSuppression=false skips the suppressed list.
+    * The message still explains the error, only the trace is empty.
+    */
+    static class StacklessInvalidAgeException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public StacklessInvalidAgeException(String message) {
+            super(message, null, false, false);
+        }
+    }
+
+    /*
+    * Preallocated Exception:
+    * A single stackless instance thrown again and again, no allocation at all.
+    * Must be immutable (no causes, no suppressed exceptions) and carries no
+    * per-call details, so use it only when the type alone tells the story.
+    */
+    static final StacklessInvalidAgeException TOO_YOUNG =
+            new StacklessInvalidAgeException("Age must be at least 18");
+
+    public static void validateAge(int age) throws InvalidAgeException {
+        if (age < 18) {
+            throw new InvalidAgeException("Age must be at least 18");
+        }
+    }
+
+    public static void validateAgeStackless(int age) throws StacklessInvalidAgeException {
+        if (age < 18) {
+            throw new StacklessInvalidAgeException("Age must be at least 18");
+        }
+    }
+
+    public static void validateAgePreallocated(int age) throws StacklessInvalidAgeException {
+        if (age < 18) {
+            throw TOO_YOUNG;
+        }
+    }
+
+    /*
+    * Optional Result:
+    * Returns the error message, or empty when valid.
+    * Optional.empty() is a shared instance, but Optional.of() allocates a new
+    * Optional on every invalid call (unless escape analysis removes it).
+    * Cheaper than an exception, not allocation-free like the sealed result below.
+    */
+    public static Optional<String> checkAge(int age) {
+        return age < 18 ? Optional.of("Age must be at least 18") : Optional.empty();
+    }
+
+    /*
+    * Sealed Result Type:
+    * The caller must handle both outcomes, enforced by the exhaustive switch.
+    * Both results are constants, so validation allocates nothing.
+    */
+    sealed interface AgeValidation permits ValidAge, InvalidAge {}
+    record ValidAge() implements AgeValidation {}
+    record InvalidAge(String reason) implements AgeValidation {}
+
+    static final AgeValidation VALID = new ValidAge();
+    static final AgeValidation TOO_YOUNG_RESULT = new InvalidAge("Age must be at least 18");
+
+    public static AgeValidation validateAgeResult(int age) {
+        return age < 18 ? TOO_YOUNG_RESULT : VALID;
+    }
+
+    public static void main(String[] args) {
+
+        // Handling each style
+        try {
+            validateAgeStackless(15);
+        } catch (StacklessInvalidAgeException e) {
+            System.out.println("Invalid age: " + e.getMessage()
+                    + " (stack frames: " + e.getStackTrace().length + ")"); // 0 frames
+        }
+
+        checkAge(15).ifPresent(error -> System.out.println("Invalid age: " + error));
+
+        String message = switch (validateAgeResult(15)) {
+            case ValidAge valid -> "Welcome";
+            case InvalidAge invalid -> "Invalid age: " + invalid.reason();
+        };
+        System.out.println(message);
+
+        /*
+        * Benchmark:
+        * Validations/sec for every style at increasing stack depths.
+        * Every second age is invalid, as in a noisy request stream.
+        */
+        Map<String, IntUnaryOperator> styles = new LinkedHashMap<>();
+        styles.put("Exception", age -> {
+            try {
+                validateAge(age);
+                return 0;
+            } catch (InvalidAgeException e) {
+                return 1;
+            }
+        });
+        styles.put("Stackless exception", age -> {
+            try {
+                validateAgeStackless(age);
+                return 0;
+            } catch (StacklessInvalidAgeException e) {
+                return 1;
+            }
+        });
+        styles.put("Preallocated exception", age -> {
+            try {
+                validateAgePreallocated(age);
+                return 0;
+            } catch (StacklessInvalidAgeException e) {
+                return 1;
+            }
+        });
+        styles.put("Optional", age -> checkAge(age).isPresent() ? 1 : 0);
+        styles.put("Sealed result", age -> validateAgeResult(age) instanceof InvalidAge ? 1 : 0);
+
+        int[] depths = {0, 10, 100, 500};
+        int validations = 200_000;
+        System.out.printf("%-24s", "validations/sec");
+        for (int depth : depths) {
+            System.out.printf("%16s", "depth " + depth);
+        }
+        System.out.println();
+        for (Map.Entry<String, IntUnaryOperator> style : styles.entrySet()) {
+            System.out.printf("%-24s", style.getKey());
+            for (int depth : depths) {
+                atDepth(depth, style.getValue(), validations); // Warm-up
+                long start = System.nanoTime();
+                int invalid = atDepth(depth, style.getValue(), validations);
+                long elapsed = System.nanoTime() - start;
+                if (invalid != validations / 2) {
+                    throw new IllegalStateException(style.getKey() + " counted " + invalid);
+                }
+                System.out.printf("%,16d", validations * 1_000_000_000L / elapsed);
+            }
+            System.out.println();
+        }
+    }
+
+    // Recurses 'depth' frames, then runs the validations so the stack is that deep.
+    static int atDepth(int depth, IntUnaryOperator validator, int validations) {
+        if (depth > 0) {
+            return atDepth(depth - 1, validator, validations);
+        }
+        int invalid = 0;
+        for (int i = 0; i < validations; i++) {
+            invalid += validator.applyAsInt(i % 2 == 0 ? 15 : 30);
+        }
+        return invalid;
     }
 }
 
@@ -900,6 +1286,7 @@ class Generics {
 
         Shape<Integer> integerBox = new Shape<>();
         integerBox.set(100);
+        System.out.println(stringBox.get() + ", " + integerBox.get());
 
         /*
         * Generic Methods:
@@ -922,6 +1309,7 @@ class Generics {
                 printList(integerArrayList);
             }
         }
+        GenericMethod.main(args);
 
         /*
         * Wildcards:
@@ -945,6 +1333,7 @@ class Generics {
                 printListWildcard(integerArrayList);
             }
         }
+        Wildcards.main(args);
 
         /*
         * Bounded Type Parameters:
@@ -986,6 +1375,3041 @@ class Generics {
 
             }
         }
+        MathUtils.main(args);
+    }
+} 
+
+// Boxing-Free Numeric Generics:
+// Type parameters only accept reference types, so List<Integer> stores a pointer to a
+// separate Integer object (16 bytes + 4-8 byte reference) for every int (4 bytes).
+// Every read unboxes, every write may allocate. For numeric hot paths, specialize.
+
+class NumericGenerics {
+
+    /*
+    * Generic Versions:
+    * As in MathUtils above, one virtual doubleValue() call
+    * or an instanceof check plus unboxing per element.
+    */
+    public static <T extends Number> double findMaxValue(List<T> list) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (T num : list) {
+            if (num.doubleValue() > max) {
+                max = num.doubleValue();
+            }
+        }
+        return max;
+    }
+
+    public static long sum(List<? super Integer> list) {
+        long sum = 0;
+        for (Object obj : list) {
+            if (obj instanceof Integer) {
+                sum += (Integer) obj;
+            }
+        }
+        return sum;
+    }
+
+    /*
+    * Primitive-Specialized Overloads:
+    * One overload per primitive type, as java.util.Arrays does.
+    * Contiguous memory, no pointers to follow, no unboxing.
+    */
+    public static int findMaxValue(int[] values) {
+        int max = Integer.MIN_VALUE;
+        for (int value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    public static double findMaxValue(double[] values) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (double value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    public static long sum(int[] values) {
+        long sum = 0; // 10M values up to 999,999 overflow an int accumulator
+        for (int value : values) {
+            sum += value;
+        }
+        return sum;
+    }
+
+    /*
+    * ToDoubleFunction:
+    * Keeps objects generic but extracts a primitive without boxing the result,
+    * e.g. findMaxValue(orders, Order::price).
+    */
+    public static <T> double findMaxValue(List<T> list, ToDoubleFunction<? super T> extractor) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (T item : list) {
+            max = Math.max(max, extractor.applyAsDouble(item));
+        }
+        return max;
+    }
+
+    /*
+    * Primitive Streams:
+    * IntStream, LongStream and DoubleStream avoid the Stream<Integer> boxing.
+    */
+    public static long sumStream(int[] values) {
+        return IntStream.of(values).asLongStream().sum(); // IntStream.sum() would wrap around
+    }
+
+    public static int maxStream(int[] values) {
+        return IntStream.of(values).max().orElse(Integer.MIN_VALUE);
+    }
+
+    /*
+    * Hand-Specialized Classes:
+    * Shape<T> from above boxes an int on every set(). IntShape is the same
+    * container specialized for int, as the JDK does with OptionalInt.
+    */
+    static class Shape<T> {
+        private T t;
+
+        public void set(T t) {
+            this.t = t;
+        }
+
+        public T get() {
+            return t;
+        }
+    }
+
+    static class IntShape {
+        private int value;
+
+        public void set(int value) {
+            this.value = value;
+        }
+
+        public int get() {
+            return value;
+        }
+    }
+
+    public static void main(String[] args) {
+        int size = 10_000_000;
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        /*
+        * Heap Footprint:
+        * Build the same 10M values boxed and primitive, and compare retained heap.
+        */
+        long baseline = usedHeap();
+        List<Integer> boxedList = new ArrayList<>();
+        for (int i = 0; i < size; i++) {
+            boxedList.add(i % 1_000_000);
+        }
+        long boxedBytes = usedHeap() - baseline;
+
+        baseline = usedHeap();
+        int[] primitiveArray = new int[size];
+        for (int i = 0; i < size; i++) {
+            primitiveArray[i] = i % 1_000_000;
+        }
+        long primitiveBytes = usedHeap() - baseline;
+
+        System.out.printf("Heap: List<Integer> %,d MB, int[] %,d MB%n",
+                boxedBytes >> 20, primitiveBytes >> 20);
+
+        /*
+        * Time and Allocation:
+        * Each variant runs a few times so the JIT compiles it, the last run is reported.
+        */
+        Map<String, DoubleSupplier> variants = new LinkedHashMap<>();
+        variants.put("findMaxValue(List<T extends Number>)", () -> findMaxValue(boxedList));
+        variants.put("findMaxValue(List<T>, ToDoubleFunction)", () -> findMaxValue(boxedList, Integer::doubleValue));
+        variants.put("findMaxValue(int[])", () -> findMaxValue(primitiveArray));
+        variants.put("IntStream.max()", () -> maxStream(primitiveArray));
+        variants.put("sum(List<? super Integer>)", () -> sum(boxedList));
+        variants.put("sum(int[])", () -> sum(primitiveArray));
+        variants.put("IntStream.sum()", () -> sumStream(primitiveArray));
+        variants.put("Shape<Integer> set/get", () -> {
+            Shape<Integer> shape = new Shape<>();
+            long total = 0;
+            for (int i = 0; i < size; i++) {
+                shape.set(i);                 // Boxes values outside the Integer cache
+                total += shape.get();         // Unboxes
+            }
+            return total;
+        });
+        variants.put("IntShape set/get", () -> {
+            IntShape shape = new IntShape();
+            long total = 0;
+            for (int i = 0; i < size; i++) {
+                shape.set(i);
+                total += shape.get();
+            }
+            return total;
+        });
+
+        for (Map.Entry<String, DoubleSupplier> variant : variants.entrySet()) {
+            double result = 0;
+            long elapsed = 0;
+            long allocated = 0;
+            for (int run = 0; run < 5; run++) {
+                long allocatedBefore = threadBean.getCurrentThreadAllocatedBytes();
+                long start = System.nanoTime();
+                result = variant.getValue().getAsDouble();
+                elapsed = System.nanoTime() - start;
+                allocated = threadBean.getCurrentThreadAllocatedBytes() - allocatedBefore;
+            }
+            System.out.printf("%-42s %8.2f ms %,14d bytes allocated (result %.0f)%n",
+                    variant.getKey(), elapsed / 1e6, allocated, result);
+        }
+    }
+
+    // Used heap after asking for a full collection, good enough for comparing MBs.
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
+
+// ---------------------------------------------------------------------------------
+// 13. Concurrent Data Structures
+// ---------------------------------------------------------------------------------
+
+// The collections from chapter 7 are not thread-safe. When several threads share a
+// structure, java.util.concurrent provides versions that scale without a global lock.
+// Which one is fastest depends on the number of threads, so always measure.
+
+class ConcurrentDataStructures {
+    public static void main(String[] args) throws Exception {
+
+        /*
+        * ConcurrentHashMap:
+        * Thread-safe hash map, updates lock only a single bin.
+        * compute/merge perform read-modify-write atomically per key.
+        */
+        ConcurrentHashMap<String, Integer> wordCounts = new ConcurrentHashMap<>();
+        wordCounts.put("one", 1);
+        wordCounts.merge("one", 1, Integer::sum);              // one=2
+        wordCounts.compute("two", (k, v) -> v == null ? 1 : v + 1); // two=1
+        wordCounts.computeIfAbsent("three", k -> k.length());  // three=5
+        wordCounts.putIfAbsent("one", 100);                    // Ignored, key exists
+
+        /*
+        * Parallel Bulk Operations:
+        * forEach, search and reduce accept a parallelism threshold.
+        * The map is split into tasks on the common ForkJoinPool when
+        * its size exceeds the threshold (1 = always parallel).
+        */
+        long threshold = 1;
+        wordCounts.forEach(threshold, (k, v) -> System.out.println(k + " > " + v));
+        int total = wordCounts.reduceValuesToInt(threshold, v -> v, 0, Integer::sum);
+        String firstLarge = wordCounts.search(threshold, (k, v) -> v > 3 ? k : null);
+        System.out.println("Total: " + total + ", first large: " + firstLarge);
+
+        /*
+        * ConcurrentSkipListMap:
+        * Sorted, thread-safe map (the concurrent TreeMap).
+        * Lookups are O(log n), navigation methods never throw
+        * ConcurrentModificationException.
+        */
+        ConcurrentSkipListMap<Integer, String> prices = new ConcurrentSkipListMap<>();
+        prices.put(100, "low");
+        prices.put(500, "medium");
+        prices.put(900, "high");
+        System.out.println("Ceiling of 450: " + prices.ceilingKey(450)); // 500
+        System.out.println("Below 600: " + prices.headMap(600));         // {100=low, 500=medium}
+
+        /*
+        * AtomicLong vs LongAdder:
+        * AtomicLong is a single CAS-updated value, every thread fights for one cache line.
+        * LongAdder spreads updates over several cells and sums them on read.
+        * Prefer LongAdder for write-heavy counters, AtomicLong when you need get-and-set.
+        */
+        AtomicLong atomicCounter = new AtomicLong();
+        atomicCounter.incrementAndGet();
+        atomicCounter.compareAndSet(1, 10);
+
+        LongAdder adderCounter = new LongAdder();
+        adderCounter.increment();
+        adderCounter.add(9);
+        System.out.println("Adder sum: " + adderCounter.sum()); // 10
+
+        /*
+        * Concurrent Queues:
+        * - ConcurrentLinkedQueue: unbounded, lock-free, never blocks
+        * - ArrayBlockingQueue: bounded, single lock, blocks when full/empty
+        * - LinkedTransferQueue: unbounded, lock-free, producers may wait for a consumer
+        */
+        Queue<String> lockFreeQueue = new ConcurrentLinkedQueue<>();
+        lockFreeQueue.offer("task");
+        lockFreeQueue.poll();
+
+        BlockingQueue<String> boundedQueue = new ArrayBlockingQueue<>(1024);
+        boundedQueue.put("task");          // Blocks while the queue is full
+        boundedQueue.take();               // Blocks while the queue is empty
+
+        TransferQueue<String> transferQueue = new LinkedTransferQueue<>();
+        transferQueue.offer("task");
+        transferQueue.tryTransfer("direct"); // Hands over only if a consumer is waiting
+
+        /*
+        * Striped Counter:
+        * A hand-rolled LongAdder, see StripedCounter below.
+        */
+        StripedCounter stripedCounter = new StripedCounter(16);
+        stripedCounter.increment();
+        System.out.println("Striped sum: " + stripedCounter.sum()); // 1
+
+        /*
+        * Contention Benchmark:
+        * Sweeps thread counts from 1 to 2x cores and prints ops/sec.
+        * Look for the crossover points where one structure overtakes another.
+        */
+        int cores = Runtime.getRuntime().availableProcessors();
+        List<Integer> threadCounts = new ArrayList<>();
+        for (int t = 1; t < 2 * cores; t *= 2) {
+            threadCounts.add(t);
+        }
+        threadCounts.add(2 * cores);
+
+        Map<String, IntFunction<Runnable>> workloads = new LinkedHashMap<>();
+        workloads.put("AtomicLong", threads -> {
+            AtomicLong counter = new AtomicLong();
+            return counter::incrementAndGet;
+        });
+        workloads.put("LongAdder", threads -> {
+            LongAdder counter = new LongAdder();
+            return counter::increment;
+        });
+        workloads.put("StripedCounter", threads -> {
+            StripedCounter counter = new StripedCounter(Integer.highestOneBit(threads) * 2);
+            return counter::increment;
+        });
+        workloads.put("ConcurrentHashMap.merge", threads -> {
+            ConcurrentHashMap<Integer, Long> map = new ConcurrentHashMap<>();
+            return () -> map.merge(ThreadLocalRandom.current().nextInt(1024), 1L, Long::sum);
+        });
+        workloads.put("ConcurrentSkipListMap.merge", threads -> {
+            ConcurrentSkipListMap<Integer, Long> map = new ConcurrentSkipListMap<>();
+            return () -> map.merge(ThreadLocalRandom.current().nextInt(1024), 1L, Long::sum);
+        });
+        workloads.put("ConcurrentLinkedQueue", threads -> {
+            Queue<Integer> queue = new ConcurrentLinkedQueue<>();
+            return () -> { queue.offer(1); queue.poll(); };
+        });
+        workloads.put("ArrayBlockingQueue", threads -> {
+            Queue<Integer> queue = new ArrayBlockingQueue<>(1024);
+            return () -> { queue.offer(1); queue.poll(); };
+        });
+        workloads.put("LinkedTransferQueue", threads -> {
+            Queue<Integer> queue = new LinkedTransferQueue<>();
+            return () -> { queue.offer(1); queue.poll(); };
+        });
+
+        System.out.printf("%-28s", "ops/sec");
+        for (int threads : threadCounts) {
+            System.out.printf("%14s", threads + " threads");
+        }
+        System.out.println();
+        for (Map.Entry<String, IntFunction<Runnable>> workload : workloads.entrySet()) {
+            System.out.printf("%-28s", workload.getKey());
+            for (int threads : threadCounts) {
+                Runnable operation = workload.getValue().apply(threads);
+                measure(operation, threads, 200);                        // Warm-up
+                long opsPerSecond = measure(operation, threads, 1000);
+                System.out.printf("%,14d", opsPerSecond);
+            }
+            System.out.println();
+        }
+    }
+
+    // Runs 'operation' on 'threads' threads for 'millis' and returns the total ops/sec.
+    static long measure(Runnable operation, int threads, long millis) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Long>> results = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            results.add(executor.submit(() -> {
+                start.await();
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+                long ops = 0;
+                do {
+                    for (int i = 0; i < 1024; i++) { // Check the clock only every 1024 ops
+                        operation.run();
+                    }
+                    ops += 1024;
+                } while (System.nanoTime() < deadline);
+                return ops;
+            }));
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        long totalOps = 0;
+        for (Future<Long> result : results) {
+            totalOps += result.get();
+        }
+        long elapsed = System.nanoTime() - begin;
+        executor.shutdown();
+        return totalOps * 1_000_000_000L / elapsed;
+    }
+
+    /*
+    * Hand-rolled Striped Counter:
+    * Each thread hashes to its own cell, cells are 128 bytes apart so
+    * two threads never write to the same cache line (no false sharing).
+    */
+    static final class StripedCounter {
+        private static final int PADDING = 16; // 16 longs = 128 bytes between cells
+        private final AtomicLongArray cells;
+        private final int mask;
+
+        StripedCounter(int stripes) {
+            int size = Integer.highestOneBit(Math.max(1, stripes - 1) << 1); // Round up to power of 2
+            this.cells = new AtomicLongArray(size * PADDING);
+            this.mask = size - 1;
+        }
+
+        void increment() {
+            int stripe = (int) Thread.currentThread().threadId() & mask;
+            cells.getAndIncrement(stripe * PADDING);
+        }
 
+        long sum() {
+            long sum = 0;
+            for (int i = 0; i < cells.length(); i += PADDING) {
+                sum += cells.get(i);
+            }
+            return sum;
+        }
     }
-} 
\ No newline at end of file
+}
+
+// ---------------------------------------------------------------------------------
+// 14. Locks, VarHandles and the Java Memory Model
+// ---------------------------------------------------------------------------------
+
+// The Java Memory Model (JMM) defines when a write by one thread becomes visible to
+// another. Without a happens-before relationship (lock, volatile, VarHandle, thread
+// start/join) the JIT and CPU may reorder or cache writes, so other threads can see
+// stale values. Every tool below creates such a relationship at a different cost.
+
+class LocksAndMemoryModel {
+    public static void main(String[] args) throws Exception {
+
+        /*
+        * synchronized:
+        * Intrinsic lock on an object. Unlocking happens-before every later
+        * lock of the same monitor, so all writes inside are visible.
+        * Correct, but every deposit now serializes on one lock.
+        */
+        class SynchronizedWallet {
+            private double balance;
+
+            public synchronized void deposit(double amount) {
+                balance += amount;
+            }
+
+            public synchronized double getBalance() {
+                return balance;
+            }
+        }
+
+        SynchronizedWallet synchronizedWallet = new SynchronizedWallet();
+        synchronizedWallet.deposit(100);
+
+        /*
+        * ReentrantLock:
+        * Explicit lock with tryLock, timeouts, interruptible waits and fairness.
+        * Always unlock in a finally block.
+        */
+        ReentrantLock lock = new ReentrantLock();
+        if (lock.tryLock(10, TimeUnit.MILLISECONDS)) {
+            try {
+                System.out.println("Lock acquired, hold count: " + lock.getHoldCount());
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /*
+        * ReadWriteLock:
+        * Many readers or one writer. Pays off when reads dominate
+        * and the critical section is long enough to amortize the bookkeeping.
+        */
+        ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+        Map<String, Double> rates = new HashMap<>();
+        readWriteLock.writeLock().lock();
+        try {
+            rates.put("EUR", 1.08);
+        } finally {
+            readWriteLock.writeLock().unlock();
+        }
+        readWriteLock.readLock().lock();
+        try {
+            System.out.println("EUR rate: " + rates.get("EUR"));
+        } finally {
+            readWriteLock.readLock().unlock();
+        }
+
+        /*
+        * StampedLock (Optimistic Reads):
+        * An optimistic read takes no lock at all, it only returns a stamp.
+        * After reading, validate the stamp; if a writer interfered, retry
+        * with a real read lock. Readers never block writers.
+        */
+        Point point = new Point();
+        point.move(3, 4);
+        System.out.println("Distance: " + point.distanceFromOrigin()); // 5.0
+
+        /*
+        * volatile and happens-before:
+        * A write to a volatile field happens-before every later read of it.
+        * Everything written before the volatile write is visible after the read.
+        */
+        class Publisher {
+            int payload;               // Plain field
+            volatile boolean ready;    // Publishes 'payload'
+
+            void publish() {
+                payload = 42;
+                ready = true;          // Release: payload is written first
+            }
+
+            int consume() {
+                while (!ready) {       // Acquire: once true, payload is 42
+                    Thread.onSpinWait();
+                }
+                return payload;
+            }
+        }
+
+        Publisher publisher = new Publisher();
+        Thread writer = new Thread(publisher::publish);
+        writer.start();
+        System.out.println("Payload: " + publisher.consume()); // Always 42
+        writer.join();
+
+        /*
+        * VarHandle:
+        * Fine-grained access modes on a field or array element.
+        * - getAcquire/setRelease: one-way ordering, cheaper than volatile on most CPUs
+        * - compareAndSet: atomic update, the basis of lock-free algorithms
+        * - getOpaque/setOpaque: atomic and eventually visible, no ordering
+        */
+        VarHandleCounter varHandleCounter = new VarHandleCounter();
+        varHandleCounter.increment();
+        varHandleCounter.publish(10);
+        System.out.println("VarHandle value: " + varHandleCounter.read()); // 10
+
+        /*
+        * Lock-Free Ring Buffer:
+        * A single-producer/single-consumer (SPSC) queue needs no locks or CAS,
+        * only release/acquire ordering on two sequence counters.
+        * Compare messages/sec and round-trip latency against ArrayBlockingQueue.
+        */
+        int messages = 10_000_000;
+        int roundTrips = 100_000;
+        Integer message = 1; // Shared, so no allocation is measured
+
+        for (int run = 0; run < 2; run++) { // First run is the warm-up
+            SpscRingBuffer<Integer> ringBuffer = new SpscRingBuffer<>(1024);
+            long ringNanos = throughput(ringBuffer::offer, ringBuffer::poll, messages, message);
+
+            BlockingQueue<Integer> blockingQueue = new ArrayBlockingQueue<>(1024);
+            long queueNanos = throughput(blockingQueue::offer, blockingQueue::poll, messages, message);
+
+            System.out.printf("SpscRingBuffer:     %,d msgs/sec%n", messages * 1_000_000_000L / ringNanos);
+            System.out.printf("ArrayBlockingQueue: %,d msgs/sec%n", messages * 1_000_000_000L / queueNanos);
+        }
+
+        SpscRingBuffer<Integer> ping = new SpscRingBuffer<>(1024);
+        SpscRingBuffer<Integer> pong = new SpscRingBuffer<>(1024);
+        printLatency("SpscRingBuffer",
+                roundTrip(ping::offer, ping::poll, pong::offer, pong::poll, roundTrips, message));
+
+        BlockingQueue<Integer> pingQueue = new ArrayBlockingQueue<>(1024);
+        BlockingQueue<Integer> pongQueue = new ArrayBlockingQueue<>(1024);
+        printLatency("ArrayBlockingQueue",
+                roundTrip(pingQueue::offer, pingQueue::poll, pongQueue::offer, pongQueue::poll, roundTrips, message));
+    }
+
+    static final class Point {
+        private final StampedLock stampedLock = new StampedLock();
+        private double x;
+        private double y;
+
+        void move(double deltaX, double deltaY) {
+            long stamp = stampedLock.writeLock();
+            try {
+                x += deltaX;
+                y += deltaY;
+            } finally {
+                stampedLock.unlockWrite(stamp);
+            }
+        }
+
+        double distanceFromOrigin() {
+            long stamp = stampedLock.tryOptimisticRead();   // No lock taken
+            double currentX = x;
+            double currentY = y;
+            if (!stampedLock.validate(stamp)) {             // A writer got in, fall back
+                stamp = stampedLock.readLock();
+                try {
+                    currentX = x;
+                    currentY = y;
+                } finally {
+                    stampedLock.unlockRead(stamp);
+                }
+            }
+            return Math.sqrt(currentX * currentX + currentY * currentY);
+        }
+    }
+
+    static final class VarHandleCounter {
+        private static final VarHandle VALUE;
+        static {
+            try {
+                VALUE = MethodHandles.lookup().findVarHandle(VarHandleCounter.class, "value", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private long value;
+
+        void increment() {
+            long current;
+            do {
+                current = (long) VALUE.getVolatile(this);
+            } while (!VALUE.compareAndSet(this, current, current + 1)); // CAS loop
+        }
+
+        void publish(long newValue) {
+            VALUE.setRelease(this, newValue);
+        }
+
+        long read() {
+            return (long) VALUE.getAcquire(this);
+        }
+    }
+
+    /*
+    * Padded Sequence Counters:
+    * 'head' is written only by the consumer and 'tail' only by the producer.
+    * If both sat on the same 64-byte cache line, every write would invalidate
+    * the other core's copy (false sharing). The padding classes push each
+    * counter onto its own line; field layout follows the class hierarchy.
+    * Each side keeps its cached copy of the other counter next to its own
+    * counter, on the line only that thread writes, so refreshing the cache
+    * never invalidates the other thread's line.
+    */
+    static class Padding0 { long p01, p02, p03, p04, p05, p06, p07; }
+    static class TailSequence extends Padding0 {                       // Producer
+        long tail;
+        long cachedHead; // Producer's last seen head, avoids reading the consumer's line
+    }
+    static class Padding1 extends TailSequence { long p11, p12, p13, p14, p15, p16, p17; }
+    static class HeadSequence extends Padding1 {                       // Consumer
+        long head;
+        long cachedTail; // Consumer's last seen tail
+    }
+    static class Padding2 extends HeadSequence { long p21, p22, p23, p24, p25, p26, p27; }
+
+    static final class SpscRingBuffer<E> extends Padding2 {
+        private static final VarHandle HEAD;
+        private static final VarHandle TAIL;
+        private static final VarHandle SLOTS = MethodHandles.arrayElementVarHandle(Object[].class);
+        static {
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup();
+                HEAD = lookup.findVarHandle(HeadSequence.class, "head", long.class);
+                TAIL = lookup.findVarHandle(TailSequence.class, "tail", long.class);
+            } catch (ReflectiveOperationException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+
+        private final Object[] slots;
+        private final int mask;
+
+        SpscRingBuffer(int capacity) {
+            if (Integer.bitCount(capacity) != 1) {
+                throw new IllegalArgumentException("Capacity must be a power of 2");
+            }
+            this.slots = new Object[capacity];
+            this.mask = capacity - 1;
+        }
+
+        // Producer thread only
+        boolean offer(E element) {
+            long currentTail = tail;
+            if (currentTail - cachedHead == slots.length) {
+                cachedHead = (long) HEAD.getAcquire(this);
+                if (currentTail - cachedHead == slots.length) {
+                    return false; // Full
+                }
+            }
+            SLOTS.set(slots, (int) currentTail & mask, element);
+            TAIL.setRelease(this, currentTail + 1); // Publishes the slot write
+            return true;
+        }
+
+        // Consumer thread only
+        @SuppressWarnings("unchecked")
+        E poll() {
+            long currentHead = head;
+            if (currentHead == cachedTail) {
+                cachedTail = (long) TAIL.getAcquire(this);
+                if (currentHead == cachedTail) {
+                    return null; // Empty
+                }
+            }
+            int index = (int) currentHead & mask;
+            E element = (E) SLOTS.get(slots, index);
+            SLOTS.set(slots, index, null);
+            HEAD.setRelease(this, currentHead + 1); // Frees the slot for the producer
+            return element;
+        }
+    }
+
+    // Sends 'count' messages from a producer thread to the calling thread, returns elapsed nanos.
+    static <E> long throughput(Predicate<E> offer, Supplier<E> poll, int count, E message) throws Exception {
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                while (!offer.test(message)) {
+                    Thread.yield(); // Full, let the consumer run
+                }
+            }
+        });
+        long start = System.nanoTime();
+        producer.start();
+        for (int received = 0; received < count; ) {
+            if (poll.get() != null) {
+                received++;
+            } else {
+                Thread.yield(); // Empty, let the producer run
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        producer.join();
+        return elapsed;
+    }
+
+    // Bounces a message through an echo thread 'count' times, returns sorted round-trip nanos.
+    static <E> long[] roundTrip(Predicate<E> pingOffer, Supplier<E> pingPoll,
+                                Predicate<E> pongOffer, Supplier<E> pongPoll,
+                                int count, E message) throws Exception {
+        Thread echo = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                E received;
+                while ((received = pingPoll.get()) == null) {
+                    Thread.yield();
+                }
+                pongOffer.test(received);
+            }
+        });
+        echo.start();
+        long[] latencies = new long[count];
+        for (int i = 0; i < count; i++) {
+            long start = System.nanoTime();
+            pingOffer.test(message);
+            while (pongPoll.get() == null) {
+                Thread.yield();
+            }
+            latencies[i] = System.nanoTime() - start;
+        }
+        echo.join();
+        Arrays.sort(latencies);
+        return latencies;
+    }
+
+    static void printLatency(String name, long[] sorted) {
+        System.out.printf("%-20s round trip p50=%,dns p99=%,dns p99.9=%,dns%n", name,
+                sorted[sorted.length / 2],
+                sorted[(int) (sorted.length * 0.99)],
+                sorted[(int) (sorted.length * 0.999)]);
+    }
+}
+
+// ---------------------------------------------------------------------------------
+// 15. JIT Compilation and Polymorphism
+// ---------------------------------------------------------------------------------
+
+// The JVM starts by interpreting bytecode, and compiles hot methods with the C1 and
+// then the optimizing C2 compiler. C2 uses the profile collected while interpreting:
+// which receiver types were seen at each call site decides whether a virtual call
+// becomes a direct, inlined call or a real virtual dispatch.
+
+// Useful flags:
+// - java -XX:+PrintCompilation JitAndPolymorphism
+//   Prints each compiled method: timestamp, id, tier (1-3 = C1, 4 = C2) and
+//   "made not entrant" when compiled code is thrown away (deoptimization).
+// - java -XX:+UnlockDiagnosticVMOptions -XX:+PrintInlining JitAndPolymorphism
+//   Shows per call site whether a method was inlined and why not ("too big", "megamorphic").
+// - java -XX:-DoEscapeAnalysis JitAndPolymorphism
+//   Disables escape analysis, compare the bytes/iteration printed below.
+
+class JitAndPolymorphism {
+
+    /*
+    * Vehicle Hierarchy:
+    * The abstract Vehicle from chapter 9, with more subclasses so a call
+    * site can see 1, 2 or many receiver types.
+    */
+    abstract static class Vehicle {
+        abstract int wheels();
+    }
+
+    static final class Car extends Vehicle {
+        @Override
+        int wheels() { return 4; }
+    }
+
+    static final class Motorcycle extends Vehicle {
+        @Override
+        int wheels() { return 2; }
+    }
+
+    static final class Truck extends Vehicle {
+        @Override
+        int wheels() { return 18; }
+    }
+
+    static final class Bus extends Vehicle {
+        @Override
+        int wheels() { return 6; }
+    }
+
+    static final class Tricycle extends Vehicle {
+        @Override
+        int wheels() { return 3; }
+    }
+
+    static final class Unicycle extends Vehicle {
+        @Override
+        int wheels() { return 1; }
+    }
+
+    /*
+    * Call-Site Shapes:
+    * - Monomorphic (1 type): C2 inlines the method behind a cheap type check.
+    * - Bimorphic (2 types): C2 inlines both behind an if/else on the type.
+    * - Megamorphic (3+ types): falls back to a vtable/itable call, no inlining,
+    *   and every optimization that inlining would have enabled is lost.
+    * The same applies to interface calls such as MessagingService.sendMessage().
+    */
+    static int totalWheels(Vehicle[] fleet) {
+        int total = 0;
+        for (Vehicle vehicle : fleet) {
+            total += vehicle.wheels(); // The call site being profiled
+        }
+        return total;
+    }
+
+    /*
+    * Sealed Hierarchies and Pattern Matching:
+    * A sealed interface lists all its implementations, so a switch over it
+    * is exhaustive without a default. On JDK 21 javac compiles a pattern
+    * switch to an invokedynamic call of SwitchBootstraps.typeSwitch, which
+    * returns the index of the matching case, followed by a tableswitch on
+    * that index (javap -c JitAndPolymorphism shows both). How fast the
+    * bootstrap's type test runs is up to the JDK, so the number below, next
+    * to the megamorphic call above, is the only claim made here.
+    */
+    sealed interface SealedVehicle permits SealedCar, SealedMotorcycle, SealedTruck,
+            SealedBus, SealedTricycle, SealedUnicycle {}
+    record SealedCar() implements SealedVehicle {}
+    record SealedMotorcycle() implements SealedVehicle {}
+    record SealedTruck() implements SealedVehicle {}
+    record SealedBus() implements SealedVehicle {}
+    record SealedTricycle() implements SealedVehicle {}
+    record SealedUnicycle() implements SealedVehicle {}
+
+    static int totalWheels(SealedVehicle[] fleet) {
+        int total = 0;
+        for (SealedVehicle vehicle : fleet) {
+            total += switch (vehicle) {
+                case SealedCar c -> 4;
+                case SealedMotorcycle m -> 2;
+                case SealedTruck t -> 18;
+                case SealedBus b -> 6;
+                case SealedTricycle t -> 3;
+                case SealedUnicycle u -> 1;
+            };
+        }
+        return total;
+    }
+
+    /*
+    * Escape Analysis and Scalar Replacement:
+    * If an object never leaves the compiled method (does not "escape"), C2 can
+    * replace it with its fields in registers. The 'new' below then allocates nothing.
+    */
+    record Position(double x, double y) {
+        Position plus(Position other) {
+            return new Position(x + other.x, y + other.y);
+        }
+    }
+
+    static double walk(int steps) {
+        Position step = new Position(1, 0.5);
+        double distance = 0;
+        for (int i = 0; i < steps; i++) {
+            Position moved = new Position(i, i).plus(step); // Scalar replaced once compiled
+            distance += moved.x() - moved.y();
+        }
+        return distance;
+    }
+
+    public static void main(String[] args) {
+        int fleetSize = 10_000;
+        int repetitions = 20_000;
+        List<Supplier<Vehicle>> factories = List.of(
+                Car::new, Motorcycle::new, Truck::new, Bus::new, Tricycle::new, Unicycle::new);
+
+        /*
+        * Throughput Cliff:
+        * The same call site is fed 1, 2, 3 ... 6 receiver types in turn.
+        * Each new type invalidates the compiled code (see "made not entrant"
+        * with -XX:+PrintCompilation), and from 3 types on the call stays megamorphic.
+        */
+        for (int types = 1; types <= factories.size(); types++) {
+            Vehicle[] fleet = new Vehicle[fleetSize];
+            for (int i = 0; i < fleetSize; i++) {
+                fleet[i] = factories.get(i % types).get();
+            }
+            long nanos = timePerCall(() -> totalWheels(fleet), fleetSize, repetitions);
+            String shape = types == 1 ? "monomorphic" : types == 2 ? "bimorphic" : "megamorphic";
+            System.out.printf("Virtual call, %d type(s) (%s): %.2f ns/call%n", types, shape, nanos / 100.0);
+        }
+
+        SealedVehicle[] sealedFleet = new SealedVehicle[fleetSize];
+        SealedVehicle[] sealedTypes = {new SealedCar(), new SealedMotorcycle(), new SealedTruck(),
+                new SealedBus(), new SealedTricycle(), new SealedUnicycle()};
+        for (int i = 0; i < fleetSize; i++) {
+            sealedFleet[i] = sealedTypes[i % sealedTypes.length];
+        }
+        long sealedNanos = timePerCall(() -> totalWheels(sealedFleet), fleetSize, repetitions);
+        System.out.printf("Sealed switch, 6 types: %.2f ns/call%n", sealedNanos / 100.0);
+
+        // Escape analysis: bytes allocated per step after warm-up
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        int steps = 10_000_000;
+        for (int i = 0; i < 20; i++) {
+            walk(steps / 10); // Warm-up, triggers C2 compilation
+        }
+        long before = threadBean.getCurrentThreadAllocatedBytes();
+        double distance = walk(steps);
+        long allocated = threadBean.getCurrentThreadAllocatedBytes() - before;
+        System.out.printf("Escape analysis: %.2f bytes/step (distance %.0f)%n",
+                (double) allocated / steps, distance);
+    }
+
+    // Returns the average time per element in hundredths of a nanosecond.
+    static long timePerCall(IntSupplier benchmark, int elements, int repetitions) {
+        int blackhole = 0;
+        for (int i = 0; i < repetitions / 10; i++) {
+            blackhole += benchmark.getAsInt(); // Warm-up
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < repetitions; i++) {
+            blackhole += benchmark.getAsInt();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (blackhole == 42) {
+            System.out.println(); // Keeps results alive so the JIT cannot drop the work
+        }
+        return elapsed * 100 / ((long) elements * repetitions);
+    }
+}
+
+// ---------------------------------------------------------------------------------
+// 16. Memory Management and Garbage Collection
+// ---------------------------------------------------------------------------------
+
+// Every 'new' allocates on the heap; the garbage collector (GC) reclaims objects that are
+// no longer reachable. Allocation itself is cheap (a pointer bump in a thread-local
+// buffer), the cost shows up later as GC work and pauses. Measure both before tuning.
+
+// Heap Sizing:
+// - -Xms512m / -Xmx2g: initial and maximum heap. Equal values avoid resizing at runtime.
+// - -XX:MaxRAMPercentage=75: max heap as a share of RAM (or of the container limit).
+// - -Xss1m: stack size per thread (not part of the heap).
+// - -Xlog:gc: one log line per collection, -Xlog:gc* for details.
+
+// Garbage Collectors:
+// - Serial (-XX:+UseSerialGC): single thread, stop-the-world. Small heaps, 1 CPU.
+// - Parallel (-XX:+UseParallelGC): many threads, stop-the-world. Best raw throughput.
+// - G1 (-XX:+UseG1GC): default. Region based, aims for a pause goal (-XX:MaxGCPauseMillis=200).
+// - ZGC (-XX:+UseZGC -XX:+ZGenerational): concurrent, sub-millisecond pauses at any heap size.
+//   JDK 21 needs -XX:+ZGenerational for generational mode. JDK 23 made it the default
+//   and deprecated the flag, JDK 24 removed the non-generational mode.
+// - Epsilon (-XX:+UnlockExperimentalVMOptions -XX:+UseEpsilonGC): allocates but never
+//   collects. The JVM exits once the heap is full; a baseline for "zero GC cost".
+
+// Object Layout (64-bit HotSpot):
+// - Header: 12 bytes (8 byte mark word + 4 byte compressed class pointer).
+// - Fields follow the header, and every object is padded to a multiple of 8 bytes.
+//   new Object() = 16 bytes, Integer = 16 bytes, empty String = 24 bytes (+ its byte[]).
+// - Compressed oops: with heaps below 32 GB, references are stored as 4-byte
+//   offsets instead of 8-byte pointers (-XX:+UseCompressedOops, on by default).
+//   Crossing 32 GB silently makes every reference twice as large.
+// - Arrays have a 16 byte header (including the length), then the elements.
+
+class MemoryAndGarbageCollection {
+
+    // Collectors compared by the script: name and JVM flags
+    static final Map<String, List<String>> COLLECTORS = new LinkedHashMap<>();
+    static {
+        COLLECTORS.put("Serial", List.of("-XX:+UseSerialGC", "-Xmx256m"));
+        COLLECTORS.put("Parallel", List.of("-XX:+UseParallelGC", "-Xmx256m"));
+        COLLECTORS.put("G1", List.of("-XX:+UseG1GC", "-Xmx256m"));
+        // -XX:+ZGenerational only on JDK 21 and 22, it is deprecated from JDK 23
+        COLLECTORS.put("ZGC (generational)", Runtime.version().feature() < 23
+                ? List.of("-XX:+UseZGC", "-XX:+ZGenerational", "-Xmx256m")
+                : List.of("-XX:+UseZGC", "-Xmx256m"));
+        // Epsilon never frees memory, so it gets a heap large enough for the whole run
+        COLLECTORS.put("Epsilon", List.of("-XX:+UnlockExperimentalVMOptions", "-XX:+UseEpsilonGC", "-Xmx3g"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("workload")) {
+            runWorkload();
+            return;
+        }
+
+        /*
+        * Inspecting the Running JVM:
+        * The HotSpot diagnostic bean exposes the current value of any -XX flag.
+        */
+        com.sun.management.HotSpotDiagnosticMXBean hotspot =
+                ManagementFactory.getPlatformMXBean(com.sun.management.HotSpotDiagnosticMXBean.class);
+        System.out.println("UseCompressedOops: " + hotspot.getVMOption("UseCompressedOops").getValue());
+        System.out.println("Max heap: " + (Runtime.getRuntime().maxMemory() >> 20) + " MB");
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            System.out.println("Collector: " + gc.getName());
+        }
+
+        /*
+        * Measuring Object Size:
+        * Retained heap of one million objects, divided by the count.
+        */
+        Map<String, Supplier<Object>> samples = new LinkedHashMap<>();
+        samples.put("new Object()", Object::new);
+        samples.put("new long[2]", () -> new long[2]);
+        samples.put("new int[0]", () -> new int[0]);
+        Object[] holder = new Object[1_000_000];
+        for (Map.Entry<String, Supplier<Object>> sample : samples.entrySet()) {
+            Arrays.fill(holder, null);
+            long before = usedHeap();
+            for (int i = 0; i < holder.length; i++) {
+                holder[i] = sample.getValue().get();
+            }
+            System.out.printf("%s: %.1f bytes%n", sample.getKey(), (double) (usedHeap() - before) / holder.length);
+        }
+
+        /*
+        * Comparing Collectors with Java Flight Recorder:
+        * Runs the same workload in a fresh JVM per collector, each recorded with
+        * -XX:StartFlightRecording, then reads the .jfr files back offline.
+        * The recordings stay on disk, open them in JDK Mission Control or with
+        * 'jfr print --events jdk.GarbageCollection gc-G1.jfr'.
+        */
+        Path directory = Files.createTempDirectory("gc-comparison");
+        String java = ProcessHandle.current().info().command().orElse("java");
+
+        // Copies this class next to the recordings, so the child JVMs find it
+        // however this example was started (class path, jar or the in-memory runner)
+        Path classPath = directory.resolve("classes");
+        try (InputStream classFile = MemoryAndGarbageCollection.class
+                .getResourceAsStream("MemoryAndGarbageCollection.class")) {
+            Files.createDirectories(classPath);
+            Files.copy(classFile, classPath.resolve("MemoryAndGarbageCollection.class"));
+        }
+
+        System.out.printf("%n%-20s %8s %6s %12s %12s %14s %12s%n", "Collector", "Wall ms", "GCs",
+                "Pauses ms", "Max pause", "Alloc MB/s", "Peak heap MB");
+        for (Map.Entry<String, List<String>> collector : COLLECTORS.entrySet()) {
+            Path recording = directory.resolve("gc-" + collector.getKey().split(" ")[0] + ".jfr");
+            List<String> command = new ArrayList<>();
+            command.add(java);
+            command.addAll(collector.getValue());
+            command.add("-XX:StartFlightRecording=filename=" + recording + ",settings=profile");
+            command.addAll(List.of("-cp", classPath.toString(), "MemoryAndGarbageCollection", "workload"));
+
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(command)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .redirectError(ProcessBuilder.Redirect.INHERIT)
+                    .start();
+            if (process.waitFor() != 0) {
+                System.out.printf("%-20s failed with exit code %d%n", collector.getKey(), process.exitValue());
+                continue;
+            }
+            long wallMillis = (System.nanoTime() - start) / 1_000_000;
+
+            int collections = 0;
+            Duration totalPause = Duration.ZERO;
+            Duration maxPause = Duration.ZERO;
+            long sampledBytes = 0;
+            long peakHeap = 0;
+            Instant first = null;
+            Instant last = null;
+            for (RecordedEvent event : RecordingFile.readAllEvents(recording)) {
+                switch (event.getEventType().getName()) {
+                    case "jdk.GarbageCollection" -> {
+                        collections++;
+                        totalPause = totalPause.plus(event.getDuration("sumOfPauses"));
+                        Duration longest = event.getDuration("longestPause");
+                        maxPause = longest.compareTo(maxPause) > 0 ? longest : maxPause;
+                    }
+                    case "jdk.ObjectAllocationSample" -> {
+                        sampledBytes += event.getLong("weight"); // Bytes this sample stands for
+                        first = first == null || event.getStartTime().isBefore(first) ? event.getStartTime() : first;
+                        last = last == null || event.getStartTime().isAfter(last) ? event.getStartTime() : last;
+                    }
+                    case "jdk.GCHeapSummary" -> peakHeap = Math.max(peakHeap, event.getLong("heapUsed"));
+                    default -> { }
+                }
+            }
+            double seconds = first == null ? 1 : Math.max(1, Duration.between(first, last).toMillis()) / 1000.0;
+            System.out.printf("%-20s %8d %6d %12.1f %12.3f %14.0f %12d%n", collector.getKey(), wallMillis,
+                    collections, totalPause.toNanos() / 1e6, maxPause.toNanos() / 1e6,
+                    sampledBytes / seconds / (1 << 20), peakHeap >> 20);
+        }
+        System.out.println("Recordings: " + directory);
+    }
+
+    /*
+    * Allocation-Heavy Workload:
+    * The collections from chapter 7, churned in a loop. A long-lived TreeMap
+    * keeps a live set the GC must trace, the rest is short-lived garbage.
+    */
+    static void runWorkload() {
+        TreeMap<Integer, String> liveSet = new TreeMap<>();
+        Random random = new Random(42);
+        long checksum = 0;
+        for (int round = 0; round < 300; round++) {
+            List<String> arrayList = new ArrayList<>();
+            List<String> linkedList = new LinkedList<>();
+            Set<String> hashSet = new HashSet<>();
+            Map<String, Integer> hashMap = new HashMap<>();
+            for (int i = 0; i < 10_000; i++) {
+                String item = "item-" + random.nextInt(100_000);
+                arrayList.add(item);
+                linkedList.add(item);
+                hashSet.add(item);
+                hashMap.merge(item, 1, Integer::sum);
+            }
+            Collections.sort(arrayList);
+            checksum += arrayList.get(0).length() + linkedList.size() + hashSet.size() + hashMap.size();
+
+            for (int i = 0; i < 1_000; i++) { // Replace part of the live set each round
+                liveSet.put(random.nextInt(200_000), "value-" + round);
+            }
+        }
+        System.out.println("Checksum: " + checksum + ", live entries: " + liveSet.size());
+    }
+
+    // Used heap after asking for a full collection, good enough for comparing sizes.
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
+
+// ---------------------------------------------------------------------------------
+// 17. Instrumentation with JFR Events and JMX
+// ---------------------------------------------------------------------------------
+
+// Java Flight Recorder (JFR) records events from the JVM and from your own code into a
+// low-overhead ring buffer. A custom event costs close to nothing while no recording
+// is listening. JMX (Java Management Extensions) exposes counters that tools such as
+// JConsole, VisualVM or a metrics agent can read at any time.
+
+class InstrumentationWithJfrAndJmx {
+
+    /*
+    * Custom JFR Events:
+    * Extend jdk.jfr.Event, fields become the recorded values.
+    * - @Name: stable identifier used in settings and by consumers
+    * - @Label/@Description/@Category: shown in JDK Mission Control
+    * - @StackTrace(false): skip capturing the stack, cheaper commits
+    * - @Threshold: only record reads slower than the threshold
+    */
+    @Name("com.referencecollection.FileRead")
+    @Label("File Read")
+    @Description("A file read through one of the I/O APIs from chapter 11")
+    @Category({"Reference Collection", "I/O"})
+    @StackTrace(false)
+    @Threshold("1 ms")
+    static class FileReadEvent extends jdk.jfr.Event {
+        @Label("Path")
+        String path;
+
+        @Label("Reader")
+        String reader;
+
+        @Label("Bytes Read")
+        @DataAmount
+        long bytesRead;
+    }
+
+    /*
+    * MXBean:
+    * An interface named <Something>MXBean, getters become read-only attributes.
+    * Counters use LongAdder, cheap to update from many threads.
+    */
+    public interface FileReadStatsMXBean {
+        long getReads();
+        long getBytesRead();
+        double getAverageMicros();
+    }
+
+    static class FileReadStats implements FileReadStatsMXBean {
+        private final LongAdder reads = new LongAdder();
+        private final LongAdder bytesRead = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+
+        void record(long bytes, long elapsedNanos) {
+            reads.increment();
+            bytesRead.add(bytes);
+            nanos.add(elapsedNanos);
+        }
+
+        @Override
+        public long getReads() {
+            return reads.sum();
+        }
+
+        @Override
+        public long getBytesRead() {
+            return bytesRead.sum();
+        }
+
+        @Override
+        public double getAverageMicros() {
+            long count = reads.sum();
+            return count == 0 ? 0 : nanos.sum() / 1000.0 / count;
+        }
+    }
+
+    static final FileReadStats STATS = new FileReadStats();
+
+    /*
+    * Instrumented Read:
+    * begin() stamps the start time, commit() the end time and writes the event
+    * if it is enabled and above the threshold. shouldCommit() lets you skip
+    * expensive field computations when the event would be dropped anyway.
+    */
+    static long readFile(File file, String reader) throws IOException {
+        FileReadEvent event = new FileReadEvent();
+        event.begin();
+        long start = System.nanoTime();
+        long bytes = 0;
+        switch (reader) {
+            case "FileInputStream" -> {
+                try (FileInputStream fis = new FileInputStream(file)) {
+                    byte[] buffer = new byte[8192];
+                    int read;
+                    while ((read = fis.read(buffer)) != -1) {
+                        bytes += read;
+                    }
+                }
+            }
+            case "BufferedReader" -> {
+                try (BufferedReader bufferedReader = new BufferedReader(new FileReader(file))) {
+                    String line;
+                    while ((line = bufferedReader.readLine()) != null) {
+                        bytes += line.length() + 1;
+                    }
+                }
+            }
+            case "Scanner" -> {
+                try (Scanner scanner = new Scanner(file)) {
+                    while (scanner.hasNextLine()) {
+                        bytes += scanner.nextLine().length() + 1;
+                    }
+                }
+            }
+            default -> throw new IllegalArgumentException("Unknown reader: " + reader);
+        }
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = file.getName();
+            event.reader = reader;
+            event.bytesRead = bytes;
+            event.commit();
+        }
+        STATS.record(bytes, System.nanoTime() - start);
+        return bytes;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        // Sample file: the text from chapter 11, repeated
+        File file = File.createTempFile("filename", ".txt");
+        file.deleteOnExit();
+        try (BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(file))) {
+            for (int i = 0; i < 1_000; i++) {
+                bufferedWriter.write("Hello, this is a sample text.");
+                bufferedWriter.newLine();
+            }
+        }
+
+        /*
+        * Registering the MXBean:
+        * Visible in JConsole under com.referencecollection > FileReadStats.
+        * A proxy reads it back through the MBean server, like a remote client would.
+        */
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("com.referencecollection:type=FileReadStats");
+        server.registerMBean(STATS, name);
+        FileReadStatsMXBean proxy = JMX.newMXBeanProxy(server, name, FileReadStatsMXBean.class);
+
+        /*
+        * Overhead When Disabled:
+        * No recording is running, begin/end/shouldCommit reduce to a
+        * check of a static flag, a few nanoseconds once compiled. Each phase
+        * is warmed up first so the numbers compare compiled code, not the
+        * interpreter. File reads vary by tens of microseconds between runs,
+        * the empty-event line isolates what an event itself costs.
+        */
+        String[] readers = {"FileInputStream", "BufferedReader", "Scanner"};
+        int reads = 3_000;
+        timeReads(file, readers, reads); // Warm-up
+        long disabledNanos = timeReads(file, readers, reads);
+        timeEmptyEvents(1_000_000);      // Warm-up
+        long disabledEventNanos = timeEmptyEvents(1_000_000);
+
+        /*
+        * RecordingStream:
+        * Records and consumes events in the same process, a live dashboard
+        * without writing a file. Settings override the annotations: here
+        * the threshold is dropped to 0 so every read is recorded.
+        */
+        LongAdder streamedEvents = new LongAdder();
+        Map<String, LongAdder> bytesPerReader = new ConcurrentHashMap<>();
+        try (RecordingStream stream = new RecordingStream()) {
+            stream.enable(FileReadEvent.class).withThreshold(Duration.ZERO);
+            stream.enable("jdk.CPULoad").withPeriod(Duration.ofMillis(500));
+            stream.onEvent("com.referencecollection.FileRead", event -> {
+                if (event.getString("path") == null) {
+                    return; // Empty events from the overhead measurement
+                }
+                streamedEvents.increment();
+                bytesPerReader.computeIfAbsent(event.getString("reader"), k -> new LongAdder())
+                        .add(event.getLong("bytesRead"));
+            });
+            stream.onEvent("jdk.CPULoad", event ->
+                    System.out.printf("[dashboard] JVM CPU %.0f%%, reads so far %,d%n",
+                            event.getFloat("jvmUser") * 100, proxy.getReads()));
+            stream.startAsync();
+
+            // Enabling the event instruments its class and deoptimizes the code
+            // using it, so warm up again before measuring the enabled state
+            timeReads(file, readers, reads);
+            long enabledNanos = timeReads(file, readers, reads);
+            timeEmptyEvents(1_000_000);
+            long enabledEventNanos = timeEmptyEvents(1_000_000);
+            Thread.sleep(1_500); // Let the stream flush the last events
+
+            System.out.printf("File read, events disabled: %,d ns/read%n", disabledNanos / reads);
+            System.out.printf("File read, events enabled:  %,d ns/read%n", enabledNanos / reads);
+            System.out.printf("Empty event, disabled: %.2f ns, enabled: %.2f ns%n",
+                    disabledEventNanos / 1e6, enabledEventNanos / 1e6);
+        }
+
+        System.out.println("Streamed FileRead events: " + streamedEvents.sum());
+        bytesPerReader.forEach((reader, bytes) -> System.out.println(reader + " > " + bytes.sum() + " bytes"));
+        System.out.printf("MXBean: %,d reads, %,d bytes, %.1f us average%n",
+                proxy.getReads(), proxy.getBytesRead(), proxy.getAverageMicros());
+    }
+
+    static long timeReads(File file, String[] readers, int reads) throws IOException {
+        long start = System.nanoTime();
+        for (int i = 0; i < reads; i++) {
+            readFile(file, readers[i % readers.length]);
+        }
+        return System.nanoTime() - start;
+    }
+
+    // Cost of begin/end/commit alone, with no work in between.
+    static long timeEmptyEvents(int count) {
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            FileReadEvent event = new FileReadEvent();
+            event.begin();
+            event.end();
+            if (event.shouldCommit()) {
+                event.reader = "empty";
+                event.commit();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+}
+
+// ---------------------------------------------------------------------------------
+// 18. Startup Time
+// ---------------------------------------------------------------------------------
+
+// For command-line tools and short jobs, JVM startup is often most of the run time.
+// Before 'main' runs, the JVM loads, verifies and links hundreds of classes. Class
+// Data Sharing (CDS) stores that work in an archive that is memory-mapped on startup.
+
+// Class Data Sharing:
+// - Default CDS: the JDK ships an archive of ~1300 core classes, used automatically.
+//   -Xshare:off disables it, useful as a baseline.
+// - Dynamic AppCDS: a training run writes your application's classes (and the
+//   lambda forms it used) to an archive on exit, later runs map it:
+//     java -XX:ArchiveClassesAtExit=app.jsa -cp app.jar MyProgram
+//     java -XX:SharedArchiveFile=app.jsa -cp app.jar MyProgram
+//   Only classes from JAR files are archived, not from class directories.
+// - JDK 19+: -XX:+AutoCreateSharedArchive -XX:SharedArchiveFile=app.jsa does both.
+
+// jlink:
+// Builds a trimmed runtime containing only the modules the program needs.
+//     jdeps --print-module-deps app.jar                 (lists required modules)
+//     jlink --add-modules java.base,java.logging --strip-debug --no-man-pages \
+//           --no-header-files --generate-cds-archive --output runtime
+//     runtime/bin/java -cp app.jar MyProgram
+// The archive dump preloads the JDK's default class list, which includes java.logging;
+// without that module it prints a warning for every class it cannot find.
+// Fewer modules means a smaller module graph to resolve and a smaller image to ship.
+
+// Class Loading Analysis:
+//     java -Xlog:class+load -cp app.jar MyProgram
+// Each line names a loaded class and its source: "shared objects file" means it came
+// from a CDS archive, "jrt:/java.base" or a jar path means it was parsed at startup.
+
+class StartupTime {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && args[0].equals("hello")) {
+            System.out.println("Hello, World!"); // The HelloWorld program from chapter 2
+            report();
+            return;
+        }
+        if (args.length > 0 && args[0].equals("collections")) {
+            runCollections();
+            report();
+            return;
+        }
+
+        /*
+        * Startup Comparison:
+        * Packs this class into a jar (AppCDS needs jars), builds a jlink runtime
+        * with the jlink ToolProvider, then launches each program under each
+        * configuration and prints time-to-main, total wall time and RSS.
+        */
+        Path directory = Files.createTempDirectory("startup");
+        try {
+            Path jar = directory.resolve("startup.jar");
+            try (java.util.jar.JarOutputStream out = new java.util.jar.JarOutputStream(Files.newOutputStream(jar));
+                 InputStream classFile = StartupTime.class.getResourceAsStream("StartupTime.class")) {
+                out.putNextEntry(new java.util.jar.JarEntry("StartupTime.class"));
+                classFile.transferTo(out);
+            }
+
+            String javaLauncher = ProcessHandle.current().info().command().orElse("java");
+            Path runtime = directory.resolve("runtime");
+            java.util.spi.ToolProvider jlink = java.util.spi.ToolProvider.findFirst("jlink")
+                    .orElseThrow(() -> new IllegalStateException("jlink needs a full JDK"));
+            ByteArrayOutputStream jlinkOutput = new ByteArrayOutputStream();
+            PrintStream jlinkPrinter = new PrintStream(jlinkOutput, true);
+            int jlinkStatus = jlink.run(jlinkPrinter, jlinkPrinter, "--add-modules", "java.base,java.logging",
+                    "--strip-debug", "--no-man-pages", "--no-header-files",
+                    "--generate-cds-archive", "--output", runtime.toString());
+            if (jlinkStatus != 0) {
+                throw new IllegalStateException("jlink failed with status " + jlinkStatus + ":\n" + jlinkOutput);
+            }
+            String jlinkJava = runtime.resolve("bin").resolve("java").toString();
+
+            System.out.printf("%-12s %-22s %10s %10s %10s %18s%n", "Program", "Configuration",
+                    "Main ms", "Wall ms", "RSS MB", "Classes (shared)");
+            for (String program : List.of("hello", "collections")) {
+                Path archive = directory.resolve(program + ".jsa");
+                // Training run, writes the dynamic archive on exit
+                launch(List.of(javaLauncher, "-XX:ArchiveClassesAtExit=" + archive), List.of(), jar, program);
+
+                Map<String, List<String>> configurations = new LinkedHashMap<>();
+                configurations.put("CDS off", List.of(javaLauncher, "-Xshare:off"));
+                configurations.put("Default CDS", List.of(javaLauncher));
+                configurations.put("Dynamic AppCDS", List.of(javaLauncher, "-XX:SharedArchiveFile=" + archive));
+                configurations.put("jlink runtime", List.of(jlinkJava));
+
+                for (Map.Entry<String, List<String>> configuration : configurations.entrySet()) {
+                    // Untimed run with class loading logged, also warms the OS file cache
+                    long[] classes = countClasses(configuration.getValue(), jar, program, directory);
+                    long[] best = {Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE};
+                    for (int run = 0; run < 5; run++) { // Best of 5, without logging
+                        long[] result = launch(configuration.getValue(), List.of(), jar, program);
+                        for (int i = 0; i < 3; i++) {
+                            best[i] = Math.min(best[i], result[i]);
+                        }
+                    }
+                    System.out.printf("%-12s %-22s %10.1f %10.1f %10.1f %10d (%5d)%n", program, configuration.getKey(),
+                            best[0] / 1000.0, best[1] / 1000.0, best[2] / 1024.0, classes[0], classes[1]);
+                }
+            }
+        } finally {
+            // The jlink image alone is about 75 MB, so nothing is kept between runs
+            try (Stream<Path> paths = Files.walk(directory)) {
+                for (Path path : paths.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.delete(path);
+                }
+            }
+        }
+    }
+
+    // Launches one child JVM, returns {time-to-main us, wall us, RSS KB}.
+    static long[] launch(List<String> javaCommand, List<String> options, Path jar, String program) throws Exception {
+        List<String> command = new ArrayList<>(javaCommand);
+        command.addAll(options);
+        long launched = epochMicros();
+        command.addAll(List.of("-Dstartup.launched=" + launched, "-cp", jar.toString(), "StartupTime", program));
+
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String output = new String(process.getInputStream().readAllBytes());
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException(String.join(" ", command) + " failed:\n" + output);
+        }
+        long wall = epochMicros() - launched;
+
+        long mainMicros = 0;
+        long rssKilobytes = 0;
+        for (String line : output.split("\n")) {
+            if (line.startsWith("startup:")) {
+                String[] fields = line.substring("startup:".length()).trim().split(" ");
+                mainMicros = Long.parseLong(fields[0]);
+                rssKilobytes = Long.parseLong(fields[1]);
+            }
+        }
+        return new long[] {mainMicros, wall, rssKilobytes};
+    }
+
+    /*
+    * Counting Loaded Classes:
+    * A separate run with -Xlog:class+load, writing the log costs several
+    * percent of startup, so the timed runs do without it.
+    * Returns {classes loaded, classes from the CDS archive}.
+    */
+    static long[] countClasses(List<String> javaCommand, Path jar, String program, Path directory) throws Exception {
+        Path classLog = directory.resolve("class-load-" + program + ".log");
+        launch(javaCommand, List.of("-Xlog:class+load:file=" + classLog), jar, program);
+        List<String> loaded = Files.readAllLines(classLog);
+        long shared = loaded.stream().filter(line -> line.contains("shared objects file")).count();
+        return new long[] {loaded.size(), shared};
+    }
+
+    // Printed by the child: microseconds from launch to main, and resident memory.
+    static void report() throws IOException {
+        long mainMicros = epochMicros() - Long.getLong("startup.launched", epochMicros());
+        System.out.println("startup: " + mainMicros + " " + residentKilobytes());
+    }
+
+    // Resident set size of this process in KB (Linux only, 0 elsewhere).
+    static long residentKilobytes() throws IOException {
+        Path status = Path.of("/proc/self/status");
+        if (Files.exists(status)) {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        }
+        return 0;
+    }
+
+    static long epochMicros() {
+        Instant now = Instant.now();
+        return now.getEpochSecond() * 1_000_000 + now.getNano() / 1_000;
+    }
+
+    /*
+    * Collection-Heavy Program:
+    * Touches many classes (collections, streams, lambdas, formatting),
+    * the kind of startup a typical small tool has.
+    */
+    static void runCollections() {
+        List<String> words = new ArrayList<>(List.of("one", "two", "three", "four", "five"));
+        Set<String> treeSet = new TreeSet<>(words);
+        Map<String, Integer> lengths = new HashMap<>();
+        for (String word : words) {
+            lengths.merge(word, word.length(), Integer::sum);
+        }
+        Map<Integer, List<String>> byLength = words.stream()
+                .collect(Collectors.groupingBy(String::length, TreeMap::new, Collectors.toList()));
+        Deque<String> deque = new ArrayDeque<>(treeSet);
+        Optional<String> longest = words.stream().max(Comparator.comparingInt(String::length));
+        System.out.println(String.format("%s %s %s %s", byLength, lengths, deque.peekFirst(), longest.orElse("")));
+    }
+}
+
+// ---------------------------------------------------------------------------------
+// 19. Binary Serialization
+// ---------------------------------------------------------------------------------
+
+// Chapter 11 writes text. Structured data is smaller and faster to read back in a
+// binary format, but the format decides the trade-off between size, speed, random
+// access and how much of it you have to write yourself.
+
+class BinarySerialization {
+
+    /*
+    * The Data:
+    * A sensor measurement. Serializable only matters for ObjectOutputStream.
+    */
+    record Measurement(long id, long timestamp, double value, int sensor) implements Serializable {}
+
+    // Fixed layout: id (8) + timestamp (8) + value (8) + sensor (4)
+    static final int RECORD_BYTES = 28;
+
+    interface Codec {
+        void encode(List<Measurement> records, Path file) throws IOException;
+
+        // Returns a checksum of everything decoded, compared against the original.
+        long decode(Path file) throws IOException;
+    }
+
+    static long checksum(long checksum, long id, long timestamp, double value, int sensor) {
+        return checksum * 31 + id + timestamp + Double.doubleToLongBits(value) + sensor;
+    }
+
+    /*
+    * ObjectOutputStream:
+    * Built in and handles any object graph, but writes class descriptors and
+    * keeps a handle for every object written. reset() clears that table,
+    * otherwise every record stays reachable until the stream is closed.
+    */
+    static final class JavaSerializationCodec implements Codec {
+        @Override
+        public void encode(List<Measurement> records, Path file) throws IOException {
+            try (ObjectOutputStream out = new ObjectOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+                out.writeInt(records.size());
+                for (int i = 0; i < records.size(); i++) {
+                    out.writeObject(records.get(i));
+                    if (i % 10_000 == 0) {
+                        out.reset();
+                    }
+                }
+            }
+        }
+
+        @Override
+        public long decode(Path file) throws IOException {
+            try (ObjectInputStream in = new ObjectInputStream(
+                    new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+                int count = in.readInt();
+                long checksum = 0;
+                for (int i = 0; i < count; i++) {
+                    Measurement m = (Measurement) in.readObject();
+                    checksum = checksum(checksum, m.id(), m.timestamp(), m.value(), m.sensor());
+                }
+                return checksum;
+            } catch (ClassNotFoundException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    /*
+    * DataOutputStream:
+    * Writes primitives in big-endian order, no metadata at all.
+    * The reader must know the field order. Always wrap in a buffered stream.
+    */
+    static final class DataStreamCodec implements Codec {
+        @Override
+        public void encode(List<Measurement> records, Path file) throws IOException {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(file), 1 << 16))) {
+                out.writeInt(records.size());
+                for (Measurement m : records) {
+                    out.writeLong(m.id());
+                    out.writeLong(m.timestamp());
+                    out.writeDouble(m.value());
+                    out.writeInt(m.sensor());
+                }
+            }
+        }
+
+        @Override
+        public long decode(Path file) throws IOException {
+            try (DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+                int count = in.readInt();
+                long checksum = 0;
+                for (int i = 0; i < count; i++) {
+                    checksum = checksum(checksum, in.readLong(), in.readLong(), in.readDouble(), in.readInt());
+                }
+                return checksum;
+            }
+        }
+    }
+
+    /*
+    * ByteBuffer Fixed-Layout Codec:
+    * Every record takes exactly RECORD_BYTES, so record i starts at i * RECORD_BYTES.
+    * A direct ByteBuffer is handed to the FileChannel without an extra copy,
+    * and little-endian matches x86/ARM so no byte swapping is needed.
+    */
+    static final class FixedLayoutCodec implements Codec {
+        @Override
+        public void encode(List<Measurement> records, Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_BYTES * 4096).order(ByteOrder.LITTLE_ENDIAN);
+                for (Measurement m : records) {
+                    if (buffer.remaining() < RECORD_BYTES) {
+                        writeFully(channel, buffer);
+                    }
+                    buffer.putLong(m.id()).putLong(m.timestamp()).putDouble(m.value()).putInt(m.sensor());
+                }
+                writeFully(channel, buffer);
+            }
+        }
+
+        @Override
+        public long decode(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(RECORD_BYTES * 4096).order(ByteOrder.LITTLE_ENDIAN);
+                long checksum = 0;
+                while (channel.read(buffer) != -1) {
+                    buffer.flip();
+                    while (buffer.remaining() >= RECORD_BYTES) {
+                        checksum = checksum(checksum, buffer.getLong(), buffer.getLong(),
+                                buffer.getDouble(), buffer.getInt());
+                    }
+                    buffer.compact(); // Keep a partial record for the next read
+                }
+                return checksum;
+            }
+        }
+    }
+
+    /*
+    * Varint Codec:
+    * Small numbers take fewer bytes: 7 bits per byte, the high bit marks
+    * "more bytes follow" (LEB128, as in Protocol Buffers). Sequential ids and
+    * timestamps are stored as deltas, which are tiny. ZigZag encoding maps
+    * small negative deltas to small positive numbers: 0, -1, 1, -2 -> 0, 1, 2, 3.
+    * Smallest files, but records have variable length, so no random access.
+    */
+    static final class VarintCodec implements Codec {
+        static void writeVarint(ByteBuffer buffer, long value) {
+            while ((value & ~0x7FL) != 0) {
+                buffer.put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            buffer.put((byte) value);
+        }
+
+        static long readVarint(ByteBuffer buffer) {
+            long value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = buffer.get();
+                value |= (long) (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+
+        static long zigZag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+
+        static long unZigZag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        static final int MAX_RECORD_BYTES = 10 + 10 + 8 + 5;
+
+        @Override
+        public void encode(List<Measurement> records, Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 17).order(ByteOrder.LITTLE_ENDIAN);
+                long previousId = 0;
+                long previousTimestamp = 0;
+                for (Measurement m : records) {
+                    if (buffer.remaining() < MAX_RECORD_BYTES) {
+                        writeFully(channel, buffer);
+                    }
+                    writeVarint(buffer, zigZag(m.id() - previousId));
+                    writeVarint(buffer, zigZag(m.timestamp() - previousTimestamp));
+                    buffer.putDouble(m.value());
+                    writeVarint(buffer, m.sensor() & 0xFFFFFFFFL);
+                    previousId = m.id();
+                    previousTimestamp = m.timestamp();
+                }
+                writeFully(channel, buffer);
+            }
+        }
+
+        @Override
+        public long decode(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 17).order(ByteOrder.LITTLE_ENDIAN);
+                long checksum = 0;
+                long id = 0;
+                long timestamp = 0;
+                boolean endOfFile = false;
+                buffer.flip();
+                while (true) {
+                    if (!endOfFile && buffer.remaining() < MAX_RECORD_BYTES) {
+                        buffer.compact();
+                        endOfFile = channel.read(buffer) == -1;
+                        buffer.flip();
+                        continue;
+                    }
+                    if (!buffer.hasRemaining()) {
+                        return checksum;
+                    }
+                    id += unZigZag(readVarint(buffer));
+                    timestamp += unZigZag(readVarint(buffer));
+                    double value = buffer.getDouble();
+                    int sensor = (int) readVarint(buffer);
+                    checksum = checksum(checksum, id, timestamp, value, sensor);
+                }
+            }
+        }
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /*
+    * Memory-Mapped Random Access:
+    * Maps the fixed-layout file into memory, the OS pages it in on demand.
+    * Record i is read directly at offset i * RECORD_BYTES, no stream to skip through.
+    * A single MappedByteBuffer covers at most 2 GB, map larger files in chunks.
+    */
+    static Measurement readRecord(MappedByteBuffer mapped, int index) {
+        int offset = index * RECORD_BYTES;
+        return new Measurement(mapped.getLong(offset), mapped.getLong(offset + 8),
+                mapped.getDouble(offset + 16), mapped.getInt(offset + 24));
+    }
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10_000_000;
+
+        List<Measurement> records = new ArrayList<>(count);
+        Random random = new Random(42);
+        long timestamp = 1_700_000_000_000L;
+        long expected = 0;
+        for (int i = 0; i < count; i++) {
+            timestamp += random.nextInt(1_000);
+            Measurement m = new Measurement(i, timestamp, random.nextGaussian() * 20, random.nextInt(64));
+            records.add(m);
+            expected = checksum(expected, m.id(), m.timestamp(), m.value(), m.sensor());
+        }
+
+        Map<String, Codec> codecs = new LinkedHashMap<>();
+        codecs.put("ObjectOutputStream", new JavaSerializationCodec());
+        codecs.put("DataOutputStream", new DataStreamCodec());
+        codecs.put("ByteBuffer fixed layout", new FixedLayoutCodec());
+        codecs.put("Varint + delta", new VarintCodec());
+
+        /*
+        * Benchmark:
+        * MB/s are measured on the raw payload (RECORD_BYTES per record),
+        * so formats of different sizes compare fairly.
+        */
+        Path directory = Files.createTempDirectory("serialization");
+        double payloadMegabytes = (double) count * RECORD_BYTES / (1 << 20);
+        System.out.printf("%-24s %14s %12s %12s%n", "Format", "Bytes/record", "Encode MB/s", "Decode MB/s");
+        for (Map.Entry<String, Codec> codec : codecs.entrySet()) {
+            Path file = directory.resolve(codec.getKey().replace(' ', '-') + ".bin");
+            long start = System.nanoTime();
+            codec.getValue().encode(records, file);
+            double encodeSeconds = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            long checksum = codec.getValue().decode(file);
+            double decodeSeconds = (System.nanoTime() - start) / 1e9;
+            if (checksum != expected) {
+                throw new IllegalStateException(codec.getKey() + " decoded different data");
+            }
+
+            System.out.printf("%-24s %14.1f %12.0f %12.0f%n", codec.getKey(), (double) Files.size(file) / count,
+                    payloadMegabytes / encodeSeconds, payloadMegabytes / decodeSeconds);
+        }
+
+        // Random access into the fixed-layout file
+        Path fixedFile = directory.resolve("ByteBuffer-fixed-layout.bin");
+        try (FileChannel channel = FileChannel.open(fixedFile, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            int lookups = 1_000_000;
+            long start = System.nanoTime();
+            for (int i = 0; i < lookups; i++) {
+                int index = random.nextInt(count);
+                if (readRecord(mapped, index).id() != index) {
+                    throw new IllegalStateException("Wrong record at " + index);
+                }
+            }
+            long elapsed = System.nanoTime() - start;
+            System.out.printf("Memory-mapped random reads: %,d lookups/sec%n", lookups * 1_000_000_000L / elapsed);
+        }
+
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+}
+
+// ---------------------------------------------------------------------------------
+// 20. Networking and Non-Blocking I/O
+// ---------------------------------------------------------------------------------
+
+// A server has to hold many connections that are idle most of the time. There are
+// three common models:
+// - Event loop (NIO Selector): one thread watches all sockets and handles whichever
+//   is ready. Few threads, but all code must be non-blocking.
+// - Thread per connection on virtual threads (Java 21+): plain blocking code; a
+//   virtual thread parks instead of blocking an OS thread, so 10k+ are cheap.
+// - Asynchronous client APIs: HttpClient.sendAsync returns CompletableFutures.
+
+// All examples bind to the loopback address only. Each connection needs a file
+// descriptor on both ends, raise the limit first: ulimit -n 65536
+// With a lower limit the example reduces the number of clients to what fits.
+
+class NetworkingAndNio {
+
+    static final int MESSAGE_BYTES = 64;
+
+    /*
+    * NIO Selector Echo Server:
+    * Channels are non-blocking and registered with a Selector for the events
+    * they care about. select() blocks until at least one channel is ready.
+    * A partial write switches the key to OP_WRITE until the buffer is drained.
+    */
+    static final class NioEchoServer implements AutoCloseable {
+        private final Selector selector = Selector.open();
+        private final ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        private final Thread eventLoop;
+        private volatile boolean running = true;
+
+        NioEchoServer() throws IOException {
+            serverChannel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 16_384);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            eventLoop = Thread.ofPlatform().name("nio-event-loop").start(this::run);
+        }
+
+        int port() {
+            return serverChannel.socket().getLocalPort();
+        }
+
+        private void run() {
+            while (running) {
+                try {
+                    selector.select();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        try {
+                            handle(key);
+                        } catch (IOException e) {
+                            key.cancel();
+                            key.channel().close(); // Client went away
+                        }
+                    }
+                } catch (IOException | ClosedSelectorException e) {
+                    return;
+                }
+            }
+        }
+
+        private void handle(SelectionKey key) throws IOException {
+            if (key.isAcceptable()) {
+                SocketChannel client = serverChannel.accept();
+                if (client != null) {
+                    client.configureBlocking(false);
+                    client.register(selector, SelectionKey.OP_READ, ByteBuffer.allocate(1024));
+                }
+                return;
+            }
+            SocketChannel client = (SocketChannel) key.channel();
+            ByteBuffer buffer = (ByteBuffer) key.attachment();
+            if (key.isReadable() && client.read(buffer) == -1) {
+                key.cancel();
+                client.close();
+                return;
+            }
+            buffer.flip();
+            client.write(buffer);
+            buffer.compact();
+            // Data left over means the socket send buffer is full, wait until writable
+            key.interestOps(buffer.position() > 0 ? SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+        }
+
+        @Override
+        public void close() throws IOException {
+            running = false;
+            selector.wakeup();
+            try {
+                eventLoop.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (SelectionKey key : selector.keys()) {
+                key.channel().close();
+            }
+            selector.close();
+        }
+    }
+
+    /*
+    * Virtual-Thread Echo Server:
+    * Thread per connection with ordinary blocking streams. Blocking a virtual
+    * thread unmounts it from its carrier OS thread, so an idle connection
+    * costs a small heap-allocated stack, not a 1 MB OS thread stack.
+    */
+    static final class VirtualThreadEchoServer implements AutoCloseable {
+        private final ServerSocket serverSocket;
+        private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+        private final Thread acceptor;
+
+        VirtualThreadEchoServer() throws IOException {
+            serverSocket = new ServerSocket(0, 16_384, InetAddress.getLoopbackAddress());
+            acceptor = Thread.ofVirtual().name("acceptor").start(this::acceptLoop);
+        }
+
+        int port() {
+            return serverSocket.getLocalPort();
+        }
+
+        private void acceptLoop() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    connections.add(socket);
+                    Thread.ofVirtual().start(() -> echo(socket));
+                } catch (IOException e) {
+                    return; // Server socket closed
+                }
+            }
+        }
+
+        private void echo(Socket socket) {
+            try (socket; InputStream in = socket.getInputStream(); OutputStream out = socket.getOutputStream()) {
+                byte[] buffer = new byte[1024];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            } catch (IOException e) {
+                // Client went away
+            } finally {
+                connections.remove(socket);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+            try {
+                acceptor.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (Socket socket : connections) {
+                socket.close();
+            }
+        }
+    }
+
+    /*
+    * Load Harness:
+    * Opens 'clients' connections (each on its own virtual thread), holds them
+    * all open, measures memory, then every client sends 'messages' echo
+    * requests. Client and server share this process, so memory covers both
+    * ends of each connection: compare the models against each other.
+    */
+    static void runLoad(String model, int port, int clients, int messages) throws Exception {
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        CountDownLatch connected = new CountDownLatch(clients);
+        CountDownLatch go = new CountDownLatch(1);
+        AtomicInteger held = new AtomicInteger();
+        LongAdder requests = new LongAdder();
+        LongAdder failures = new LongAdder();
+
+        long heapBefore = usedHeap();
+        long rssBefore = residentKilobytes();
+        long start;
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int c = 0; c < clients; c++) {
+                executor.submit(() -> {
+                    boolean countedDown = false;
+                    try (Socket socket = new Socket()) {
+                        socket.connect(address, 10_000);
+                        held.incrementAndGet();
+                        connected.countDown();
+                        countedDown = true;
+                        go.await();
+                        byte[] message = new byte[MESSAGE_BYTES];
+                        InputStream in = socket.getInputStream();
+                        OutputStream out = socket.getOutputStream();
+                        for (int m = 0; m < messages; m++) {
+                            out.write(message);
+                            if (in.readNBytes(MESSAGE_BYTES).length != MESSAGE_BYTES) {
+                                throw new EOFException("Connection closed early");
+                            }
+                            requests.increment();
+                        }
+                    } catch (IOException e) {
+                        failures.increment();
+                    } finally {
+                        if (!countedDown) {
+                            connected.countDown(); // Failed to connect, whatever was thrown
+                        }
+                    }
+                    return null;
+                });
+            }
+            if (!connected.await(2, TimeUnit.MINUTES)) {
+                executor.shutdownNow(); // Interrupts the clients waiting for 'go'
+                System.out.printf("%-22s only %d of %d clients connected within 2 minutes%n",
+                        model, held.get(), clients);
+                return;
+            }
+            long heapPerConnection = (usedHeap() - heapBefore) / Math.max(1, held.get());
+            long rssPerConnection = (residentKilobytes() - rssBefore) * 1024 / Math.max(1, held.get());
+
+            start = System.nanoTime();
+            go.countDown();
+            executor.shutdown();
+            if (!executor.awaitTermination(5, TimeUnit.MINUTES)) {
+                executor.shutdownNow();
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            System.out.printf("%-22s %8d %8d %12.0f %12d %12d%n", model, held.get(), failures.sum(),
+                    requests.sum() / seconds, heapPerConnection, rssPerConnection);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 10_000;
+        int messages = 20;
+
+        // Two descriptors per connection (client and server end), plus a reserve for the JVM
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.UnixOperatingSystemMXBean os) {
+            long available = os.getMaxFileDescriptorCount() - os.getOpenFileDescriptorCount() - 256;
+            if (2L * clients > available) {
+                int fitting = (int) Math.max(1, available / 2);
+                System.out.printf("Open file limit %,d fits %,d clients, not %,d (raise it with ulimit -n)%n",
+                        os.getMaxFileDescriptorCount(), fitting, clients);
+                clients = fitting;
+            }
+        }
+
+        System.out.printf("%-22s %8s %8s %12s %12s %12s%n", "Model", "Held", "Failed",
+                "Requests/s", "Heap B/conn", "RSS B/conn");
+        try (NioEchoServer server = new NioEchoServer()) {
+            runLoad("NIO Selector", server.port(), clients, messages);
+        }
+        try (VirtualThreadEchoServer server = new VirtualThreadEchoServer()) {
+            runLoad("Virtual threads", server.port(), clients, messages);
+        }
+
+        /*
+        * HttpClient sendAsync Fan-Out:
+        * Sends all requests without waiting, then joins the futures.
+        * The server is the JDK's built-in HttpServer on virtual threads.
+        */
+        com.sun.net.httpserver.HttpServer httpServer = com.sun.net.httpserver.HttpServer.create(
+                new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        httpServer.createContext("/ping", exchange -> {
+            byte[] body = "pong".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        httpServer.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        httpServer.start();
+        try {
+            HttpClient client = HttpClient.newHttpClient();
+            URI uri = URI.create("http://127.0.0.1:" + httpServer.getAddress().getPort() + "/ping");
+            int fanOut = Math.min(clients, 1_000);
+            for (int round = 0; round < 2; round++) { // First round warms up the client
+                long start = System.nanoTime();
+                List<CompletableFuture<HttpResponse<String>>> responses = new ArrayList<>();
+                for (int i = 0; i < fanOut; i++) {
+                    HttpRequest request = HttpRequest.newBuilder(uri).build();
+                    responses.add(client.sendAsync(request, HttpResponse.BodyHandlers.ofString()));
+                }
+                CompletableFuture.allOf(responses.toArray(new CompletableFuture<?>[0])).join();
+                long ok = responses.stream().filter(response -> response.join().statusCode() == 200).count();
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("HttpClient sendAsync: %d/%d ok, %.0f requests/s%n", ok, fanOut, fanOut / seconds);
+            }
+        } finally {
+            httpServer.stop(0);
+        }
+    }
+
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    // Resident set size of this process in KB (Linux only, 0 elsewhere).
+    static long residentKilobytes() throws IOException {
+        Path status = Path.of("/proc/self/status");
+        if (Files.exists(status)) {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        }
+        return 0;
+    }
+}
+
+// ---------------------------------------------------------------------------------
+// 21. Reactive Streams and Backpressure
+// ---------------------------------------------------------------------------------
+
+// When a producer is faster than its consumer, items pile up in memory until the JVM
+// runs out of heap. Backpressure lets the consumer say how much it can take.
+// java.util.concurrent.Flow defines the four Reactive Streams interfaces:
+// - Publisher: produces items for subscribers
+// - Subscriber: receives onSubscribe, onNext, onError and onComplete signals
+// - Subscription: the link between them, request(n) signals demand for n more items
+// - Processor: both a Subscriber and a Publisher, a stage in a pipeline
+// A publisher never sends more items than were requested.
+
+class ReactiveStreams {
+
+    /*
+    * Transform Processor:
+    * SubmissionPublisher does the buffering and demand tracking downstream.
+    * Upstream, the processor requests a bounded number of items and asks for
+    * more only after it has passed half of them on. If the downstream buffer
+    * is full, submit() blocks, no more is requested, and the pressure travels
+    * back to the source.
+    */
+    static final class TransformProcessor<T, R> extends SubmissionPublisher<R>
+            implements Flow.Processor<T, R> {
+        private final Function<? super T, ? extends R> transform;
+        private final int batchRequest;
+        private Flow.Subscription subscription;
+        private int receivedSinceRequest;
+
+        TransformProcessor(Executor executor, int bufferCapacity, Function<? super T, ? extends R> transform) {
+            super(executor, bufferCapacity);
+            this.transform = transform;
+            this.batchRequest = Math.max(1, bufferCapacity / 2);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(batchRequest * 2L);
+        }
+
+        @Override
+        public void onNext(T item) {
+            submit(transform.apply(item));
+            if (++receivedSinceRequest == batchRequest) {
+                receivedSinceRequest = 0;
+                subscription.request(batchRequest); // Replenish demand
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            closeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            close();
+        }
+    }
+
+    /*
+    * Batching Processor:
+    * Groups items into lists of 'batchSize', so the next stage pays the
+    * per-signal overhead once per batch instead of once per item.
+    * The last, partial batch is flushed on completion.
+    */
+    static final class BatchingProcessor<T> extends SubmissionPublisher<List<T>>
+            implements Flow.Processor<T, List<T>> {
+        private final int batchSize;
+        private Flow.Subscription subscription;
+        private List<T> batch;
+
+        BatchingProcessor(Executor executor, int bufferCapacity, int batchSize) {
+            super(executor, bufferCapacity);
+            this.batchSize = batchSize;
+            this.batch = new ArrayList<>(batchSize);
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(batchSize);
+        }
+
+        @Override
+        public void onNext(T item) {
+            batch.add(item);
+            if (batch.size() == batchSize) {
+                submit(batch);              // Blocks while downstream is full
+                batch = new ArrayList<>(batchSize);
+                subscription.request(batchSize);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            closeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            if (!batch.isEmpty()) {
+                submit(batch);
+            }
+            close();
+        }
+    }
+
+    /*
+    * Subscriber with Demand-Based Flow Control:
+    * Requests a few batches up front and one more after each batch is
+    * processed, so at most 'prefetch' batches are ever waiting for it.
+    */
+    static final class WordCountSubscriber implements Flow.Subscriber<List<String>> {
+        private final int prefetch;
+        private final Map<String, Integer> counts = new HashMap<>();
+        private final CompletableFuture<Map<String, Integer>> result = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+        private long lines;
+
+        WordCountSubscriber(int prefetch) {
+            this.prefetch = prefetch;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(prefetch);
+        }
+
+        @Override
+        public void onNext(List<String> batch) {
+            for (String line : batch) {
+                for (String word : line.split(" ")) {
+                    counts.merge(word, 1, Integer::sum);
+                }
+            }
+            lines += batch.size();
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            result.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            result.complete(counts);
+        }
+
+        long lines() {
+            return lines;
+        }
+    }
+
+    /*
+    * Overflow Strategies at the Source:
+    * - BLOCK: submit() waits while the buffer is full. Nothing is lost, the
+    *   reader slows down to the pace of the slowest stage.
+    * - DROP: offer() with a drop handler discards items that do not fit.
+    *   Constant memory and a fast source, at the cost of lost data.
+    * - TIMEOUT: offer() waits a short time for space, then drops.
+    * - UNBOUNDED: a huge buffer, no backpressure at all. Memory grows with
+    *   the backlog; on a real stream this ends in OutOfMemoryError.
+    */
+    enum Strategy { BLOCK, DROP, TIMEOUT, UNBOUNDED }
+
+    public static void main(String[] args) throws Exception {
+        int lineCount = args.length > 0 ? Integer.parseInt(args[0]) : 2_000_000;
+
+        // A large input file, built from the sample text of chapter 11
+        File file = File.createTempFile("reactive", ".txt");
+        file.deleteOnExit();
+        try (BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(file))) {
+            for (int i = 0; i < lineCount; i++) {
+                bufferedWriter.write("Hello, this is a sample text. Line " + (i % 1000));
+                bufferedWriter.newLine();
+            }
+        }
+
+        System.out.printf("%-10s %10s %10s %10s %12s %14s%n", "Strategy", "Read", "Counted",
+                "Dropped", "Lines/s", "Peak heap MB");
+        for (Strategy strategy : Strategy.values()) {
+            runPipeline(file, strategy);
+        }
+    }
+
+    /*
+    * Pipeline:
+    * BufferedReader -> source publisher -> transform (lowercase, strip
+    * punctuation) -> batch of 1000 -> word count subscriber.
+    */
+    static void runPipeline(File file, Strategy strategy) throws Exception {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        LongAdder dropped = new LongAdder();
+        long read = 0;
+        long start = System.nanoTime();
+
+        try (ExecutorService executor = Executors.newCachedThreadPool()) {
+            int sourceCapacity = strategy == Strategy.UNBOUNDED ? 1 << 30 : 1024;
+            WordCountSubscriber counter = new WordCountSubscriber(4);
+            try (SubmissionPublisher<String> source = new SubmissionPublisher<>(executor, sourceCapacity)) {
+                TransformProcessor<String, String> normalize = new TransformProcessor<>(executor, 1024,
+                        line -> line.toLowerCase().replace(",", "").replace(".", ""));
+                BatchingProcessor<String> batcher = new BatchingProcessor<>(executor, 8, 1000);
+                source.subscribe(normalize);
+                normalize.subscribe(batcher);
+                batcher.subscribe(counter);
+
+                try (BufferedReader bufferedReader = new BufferedReader(new FileReader(file))) {
+                    String line;
+                    while ((line = bufferedReader.readLine()) != null) {
+                        read++;
+                        switch (strategy) {
+                            case BLOCK, UNBOUNDED -> source.submit(line);
+                            case DROP -> source.offer(line, (subscriber, item) -> {
+                                dropped.increment();
+                                return false; // Do not retry
+                            });
+                            case TIMEOUT -> source.offer(line, 1, TimeUnit.MILLISECONDS, (subscriber, item) -> {
+                                dropped.increment();
+                                return false;
+                            });
+                        }
+                    }
+                }
+            } // Closing the source sends onComplete down the pipeline
+            Map<String, Integer> counts = counter.result.get(5, TimeUnit.MINUTES);
+            double seconds = (System.nanoTime() - start) / 1e9;
+
+            long peakHeap = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    peakHeap += pool.getPeakUsage().getUsed();
+                }
+            }
+            if (counter.lines() + dropped.sum() != read) {
+                throw new IllegalStateException("Lost lines: " + (read - counter.lines() - dropped.sum()));
+            }
+            System.out.printf("%-10s %,10d %,10d %,10d %,12.0f %14d   (%d distinct words)%n", strategy, read,
+                    counter.lines(), dropped.sum(), read / seconds, peakHeap >> 20, counts.size());
+        }
+    }
+}
+
+// ---------------------------------------------------------------------------------
+// 22. Data-Oriented Design
+// ---------------------------------------------------------------------------------
+
+// Chapter 9 models everything as objects. For a handful of cars that is ideal, for
+// millions of entities the memory layout dominates: every object has a 12-16 byte
+// header, lives wherever the allocator put it, and is reached through a reference.
+// Data-oriented design lays out data the way the loop that processes it reads it.
+
+// Layouts:
+// - Array of Structs (AoS): List<Particle>, one object per particle. A loop over x
+//   also drags y, vx, vy and the header through the cache, and follows a pointer per element.
+// - Struct of Arrays (SoA): one primitive array per field. A loop over x reads
+//   only x, sequentially, which the CPU prefetches and the JIT can vectorize.
+// - Off-heap: a block of native memory outside the GC heap, with a fixed layout.
+//   Invisible to the GC and shareable with native code or memory-mapped files.
+//   Java 22+ offers MemorySegment (java.lang.foreign); a direct ByteBuffer works on any version.
+
+class DataOrientedDesign {
+
+    static final double DT = 0.01;
+    static final double GRAVITY = 9.81;
+
+    /*
+    * AoS with Records:
+    * Immutable, so every update allocates a replacement particle.
+    */
+    record Particle(double x, double y, double vx, double vy) {
+        Particle step() {
+            return new Particle(x + vx * DT, y + vy * DT, vx, vy - GRAVITY * DT);
+        }
+    }
+
+    /*
+    * AoS with Mutable Objects:
+    * Updated in place, no allocation, but still one object per particle.
+    */
+    static final class MutableParticle {
+        double x, y, vx, vy;
+
+        MutableParticle(double x, double y, double vx, double vy) {
+            this.x = x;
+            this.y = y;
+            this.vx = vx;
+            this.vy = vy;
+        }
+    }
+
+    /*
+    * SoA:
+    * Four parallel primitive arrays, particle i is x[i], y[i], vx[i], vy[i].
+    */
+    static final class Particles {
+        final double[] x, y, vx, vy;
+
+        Particles(int count) {
+            x = new double[count];
+            y = new double[count];
+            vx = new double[count];
+            vy = new double[count];
+        }
+    }
+
+    /*
+    * Off-Heap:
+    * 32 bytes per particle in native memory: x, y, vx, vy as doubles.
+    */
+    static final int PARTICLE_BYTES = 32;
+
+    // Kernel result: particles above ground, and their total kinetic energy (unit mass).
+    record Summary(int airborne, double energy) {}
+
+    static Summary runRecords(List<Particle> particles) {
+        for (int i = 0; i < particles.size(); i++) {
+            particles.set(i, particles.get(i).step());
+        }
+        int airborne = 0;
+        double energy = 0;
+        for (Particle p : particles) {
+            if (p.y() > 0) {
+                airborne++;
+                energy += 0.5 * (p.vx() * p.vx() + p.vy() * p.vy());
+            }
+        }
+        return new Summary(airborne, energy);
+    }
+
+    static Summary runObjects(List<MutableParticle> particles) {
+        for (MutableParticle p : particles) {
+            p.x += p.vx * DT;
+            p.y += p.vy * DT;
+            p.vy -= GRAVITY * DT;
+        }
+        int airborne = 0;
+        double energy = 0;
+        for (MutableParticle p : particles) {
+            if (p.y > 0) {
+                airborne++;
+                energy += 0.5 * (p.vx * p.vx + p.vy * p.vy);
+            }
+        }
+        return new Summary(airborne, energy);
+    }
+
+    static Summary runArrays(Particles particles) {
+        double[] x = particles.x, y = particles.y, vx = particles.vx, vy = particles.vy;
+        for (int i = 0; i < x.length; i++) { // Simple counted loops, candidates for SIMD
+            x[i] += vx[i] * DT;
+        }
+        for (int i = 0; i < y.length; i++) {
+            y[i] += vy[i] * DT;
+            vy[i] -= GRAVITY * DT;
+        }
+        int airborne = 0;
+        double energy = 0;
+        for (int i = 0; i < y.length; i++) {
+            if (y[i] > 0) {
+                airborne++;
+                energy += 0.5 * (vx[i] * vx[i] + vy[i] * vy[i]);
+            }
+        }
+        return new Summary(airborne, energy);
+    }
+
+    static Summary runOffHeap(ByteBuffer particles, int count) {
+        for (int i = 0; i < count; i++) {
+            int offset = i * PARTICLE_BYTES;
+            double vx = particles.getDouble(offset + 16);
+            double vy = particles.getDouble(offset + 24);
+            particles.putDouble(offset, particles.getDouble(offset) + vx * DT);
+            particles.putDouble(offset + 8, particles.getDouble(offset + 8) + vy * DT);
+            particles.putDouble(offset + 24, vy - GRAVITY * DT);
+        }
+        int airborne = 0;
+        double energy = 0;
+        for (int i = 0; i < count; i++) {
+            int offset = i * PARTICLE_BYTES;
+            if (particles.getDouble(offset + 8) > 0) {
+                double vx = particles.getDouble(offset + 16);
+                double vy = particles.getDouble(offset + 24);
+                airborne++;
+                energy += 0.5 * (vx * vx + vy * vy);
+            }
+        }
+        return new Summary(airborne, energy);
+    }
+
+    public static void main(String[] args) {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        int steps = 50;
+
+        /*
+        * Memory Accounting:
+        * Heap used (Runtime.totalMemory - freeMemory, after a GC) before and
+        * after building each layout. Off-heap memory is reported by the
+        * "direct" buffer pool, the heap only holds the small ByteBuffer object.
+        */
+        long before = usedHeap();
+        List<Particle> records = new ArrayList<>(count);
+        generate(count, (i, x, y, vx, vy) -> records.add(new Particle(x, y, vx, vy)));
+        long recordBytes = usedHeap() - before;
+
+        before = usedHeap();
+        List<MutableParticle> objects = new ArrayList<>(count);
+        generate(count, (i, x, y, vx, vy) -> objects.add(new MutableParticle(x, y, vx, vy)));
+        long objectBytes = usedHeap() - before;
+
+        before = usedHeap();
+        Particles arrays = new Particles(count);
+        generate(count, (i, x, y, vx, vy) -> {
+            arrays.x[i] = x;
+            arrays.y[i] = y;
+            arrays.vx[i] = vx;
+            arrays.vy[i] = vy;
+        });
+        long arrayBytes = usedHeap() - before;
+
+        before = usedHeap();
+        long directBefore = directMemory();
+        ByteBuffer offHeap = ByteBuffer.allocateDirect(count * PARTICLE_BYTES).order(ByteOrder.nativeOrder());
+        generate(count, (i, x, y, vx, vy) -> {
+            int offset = i * PARTICLE_BYTES;
+            offHeap.putDouble(offset, x);
+            offHeap.putDouble(offset + 8, y);
+            offHeap.putDouble(offset + 16, vx);
+            offHeap.putDouble(offset + 24, vy);
+        });
+        long offHeapHeapBytes = usedHeap() - before;
+        long offHeapNativeBytes = directMemory() - directBefore;
+
+        Map<String, Supplier<Summary>> layouts = new LinkedHashMap<>();
+        layouts.put("AoS List<Particle> record", () -> runRecords(records));
+        layouts.put("AoS List<MutableParticle>", () -> runObjects(objects));
+        layouts.put("SoA double[] x4", () -> runArrays(arrays));
+        layouts.put("Off-heap direct ByteBuffer", () -> runOffHeap(offHeap, count));
+
+        Map<String, String> footprints = Map.of(
+                "AoS List<Particle> record", mb(recordBytes) + " heap",
+                "AoS List<MutableParticle>", mb(objectBytes) + " heap",
+                "SoA double[] x4", mb(arrayBytes) + " heap",
+                "Off-heap direct ByteBuffer", mb(offHeapHeapBytes) + " heap + " + mb(offHeapNativeBytes) + " native");
+
+        System.out.printf("%-28s %12s  %-30s %s%n", "Layout", "ns/element", "Footprint", "Result after " + steps + " steps");
+        Summary expected = null;
+        for (Map.Entry<String, Supplier<Summary>> layout : layouts.entrySet()) {
+            Summary summary = null;
+            long start = System.nanoTime();
+            for (int step = 0; step < steps; step++) {
+                summary = layout.getValue().get();
+            }
+            double nanosPerElement = (double) (System.nanoTime() - start) / ((long) count * steps);
+            if (expected == null) {
+                expected = summary;
+            } else if (!expected.equals(summary)) {
+                throw new IllegalStateException(layout.getKey() + " computed " + summary + ", expected " + expected);
+            }
+            System.out.printf("%-28s %12.2f  %-30s %,d airborne%n", layout.getKey(), nanosPerElement,
+                    footprints.get(layout.getKey()), summary.airborne());
+        }
+    }
+
+    interface ParticleSink {
+        void accept(int index, double x, double y, double vx, double vy);
+    }
+
+    // Same seed, same starting state for every layout.
+    static void generate(int count, ParticleSink sink) {
+        Random random = new Random(42);
+        for (int i = 0; i < count; i++) {
+            sink.accept(i, random.nextDouble() * 100, random.nextDouble() * 10,
+                    random.nextGaussian(), random.nextGaussian() * 5);
+        }
+    }
+
+    static String mb(long bytes) {
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    static long directMemory() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+}
+
+// ---------------------------------------------------------------------------------
+// 23. Running the Reference
+// ---------------------------------------------------------------------------------
+
+// Every chapter is a class with a 'main' method and runs on its own. The file needs
+// JDK 21 or later (javac 17 stops at the record patterns in chapter 5):
+//     javac -d out java_reference.java
+//     java -cp out ConcurrentDataStructures
+// The runner below runs all of them. It compiles this file in memory first, so the
+// printed numbers always come from the current source, not from stale class files:
+//     java -cp out ReferenceRunner java_reference.java
+//     java -cp out ReferenceRunner java_reference.java --quick --threads 4 OOP Generics
+// Options:
+// - --threads N: chapters run in parallel (default: one per core). Parallel chapters
+//   disturb each other's timings, use --threads 1 when the benchmark numbers matter.
+//   Chapters that measure heap footprint (System.gc() and used heap, or memory pool
+//   peaks) see every other chapter's allocations, so they always run alone at the end.
+// - --quick: smaller inputs for the chapters that accept a size argument.
+// - --timeout S: seconds before a chapter is reported as TIMEOUT (default 600).
+// - --verbose: print the output of every chapter after the summary.
+// - Chapter class names: run only those chapters.
+// A chapter passes when its 'main' returns; the examples with a self-check throw
+// an exception when their results disagree, which is reported as FAIL.
+
+class ReferenceRunner {
+
+    // Smaller inputs for --quick, for chapters that take a size as their first argument
+    static final Map<String, String[]> QUICK_ARGUMENTS = Map.of(
+            "BinarySerialization", new String[] {"100000"},
+            "NetworkingAndNio", new String[] {"200"},
+            "ReactiveStreams", new String[] {"100000"},
+            "DataOrientedDesign", new String[] {"100000"});
+
+    // Chapters whose footprint numbers cover the whole heap, run one at a time
+    static final Set<String> SERIAL_CHAPTERS = Set.of(
+            "NumericGenerics", "MemoryAndGarbageCollection", "NetworkingAndNio",
+            "ReactiveStreams", "DataOrientedDesign");
+
+    record Result(String chapter, String status, long wallNanos, long allocatedBytes, String output) {}
+
+    /*
+    * In-Memory Compilation:
+    * javax.tools.JavaCompiler is javac as a library. The forwarding file
+    * manager catches every class file javac writes and keeps the bytes
+    * in a map instead of on disk.
+    */
+    static Map<String, byte[]> compile(Path source) throws IOException {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        if (compiler == null) {
+            throw new IllegalStateException("No Java compiler available, run with a JDK");
+        }
+        Map<String, ByteArrayOutputStream> output = new ConcurrentHashMap<>();
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        try (StandardJavaFileManager standardManager =
+                     compiler.getStandardFileManager(diagnostics, Locale.ROOT, StandardCharsets.UTF_8);
+             JavaFileManager memoryManager = new ForwardingJavaFileManager<>(standardManager) {
+                 @Override
+                 public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                                            JavaFileObject.Kind kind, FileObject sibling) {
+                     URI uri = URI.create("memory:///" + className.replace('.', '/') + kind.extension);
+                     return new SimpleJavaFileObject(uri, kind) {
+                         @Override
+                         public OutputStream openOutputStream() {
+                             ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                             output.put(className, bytes);
+                             return bytes;
+                         }
+                     };
+                 }
+             }) {
+            boolean success = compiler.getTask(null, memoryManager, diagnostics, List.of("-proc:none"),
+                    null, standardManager.getJavaFileObjects(source)).call();
+            for (Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics()) {
+                System.out.printf("%s line %d: %s%n", diagnostic.getKind(), diagnostic.getLineNumber(),
+                        diagnostic.getMessage(Locale.ROOT));
+            }
+            if (!success) {
+                throw new IllegalStateException("Compilation of " + source + " failed");
+            }
+        }
+        Map<String, byte[]> classes = new HashMap<>();
+        output.forEach((className, bytes) -> classes.put(className, bytes.toByteArray()));
+        return classes;
+    }
+
+    /*
+    * Class Loader for the Compiled Bytes:
+    * Child-first: a chapter compiled just now wins over an older copy of the
+    * same class on the class path. Class files are also served as resources,
+    * for the chapters that copy their own class to a child JVM.
+    */
+    static final class MemoryClassLoader extends ClassLoader {
+        private final Map<String, byte[]> classes;
+
+        MemoryClassLoader(Map<String, byte[]> classes, ClassLoader parent) {
+            super(parent);
+            this.classes = classes;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            synchronized (getClassLoadingLock(name)) {
+                Class<?> loaded = findLoadedClass(name);
+                if (loaded == null && classes.containsKey(name)) {
+                    byte[] bytes = classes.get(name);
+                    loaded = defineClass(name, bytes, 0, bytes.length);
+                }
+                if (loaded == null) {
+                    return super.loadClass(name, resolve);
+                }
+                if (resolve) {
+                    resolveClass(loaded);
+                }
+                return loaded;
+            }
+        }
+
+        @Override
+        public InputStream getResourceAsStream(String name) {
+            if (name.endsWith(".class")) {
+                byte[] bytes = classes.get(name.substring(0, name.length() - ".class".length()).replace('/', '.'));
+                if (bytes != null) {
+                    return new ByteArrayInputStream(bytes);
+                }
+            }
+            return super.getResourceAsStream(name);
+        }
+    }
+
+    /*
+    * Capturing Output per Chapter:
+    * System.out is shared by all threads. The routing stream writes to the
+    * buffer of the chapter running on the current thread; threads a chapter
+    * starts inherit its buffer through the InheritableThreadLocal. Child
+    * processes that inherit the console, like the archive dump jlink runs in
+    * chapter 18, still write to it directly.
+    */
+    static final InheritableThreadLocal<ByteArrayOutputStream> CAPTURE = new InheritableThreadLocal<>();
+
+    static PrintStream routingStream(PrintStream fallback) {
+        return new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                target().write(b);
+            }
+
+            @Override
+            public void write(byte[] bytes, int offset, int length) throws IOException {
+                target().write(bytes, offset, length);
+            }
+
+            private OutputStream target() {
+                ByteArrayOutputStream capture = CAPTURE.get();
+                return capture != null ? capture : fallback;
+            }
+        }, true);
+    }
+
+    /*
+    * Running One Chapter:
+    * main runs on its own daemon thread so a chapter that hangs can be
+    * abandoned. Allocation is read from that thread's counter; threads the
+    * chapter starts itself are not included.
+    */
+    static Result runChapter(Class<?> chapter, String[] arguments, long timeoutSeconds) throws Exception {
+        com.sun.management.ThreadMXBean threadBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        ByteArrayOutputStream capture = new ByteArrayOutputStream();
+        CAPTURE.set(capture);
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        AtomicLong allocated = new AtomicLong();
+        Method main = chapter.getMethod("main", String[].class);
+        main.setAccessible(true); // Chapter classes are package-private, in another class loader's package
+
+        Thread worker = new Thread(() -> {
+            long before = threadBean.getCurrentThreadAllocatedBytes();
+            try {
+                main.invoke(null, (Object) arguments);
+            } catch (InvocationTargetException e) {
+                failure.set(e.getCause());
+            } catch (Throwable e) {
+                failure.set(e);
+            } finally {
+                allocated.set(threadBean.getCurrentThreadAllocatedBytes() - before);
+            }
+        }, chapter.getName());
+        worker.setDaemon(true);
+
+        long start = System.nanoTime();
+        worker.start();
+        worker.join(TimeUnit.SECONDS.toMillis(timeoutSeconds));
+        long wall = System.nanoTime() - start;
+        CAPTURE.remove();
+
+        String status;
+        if (worker.isAlive()) {
+            status = "TIMEOUT";
+            allocated.set(threadBean.getThreadAllocatedBytes(worker.threadId()));
+        } else if (failure.get() != null) {
+            status = "FAIL: " + failure.get();
+        } else {
+            status = "PASS";
+        }
+        return new Result(chapter.getName(), status, wall, allocated.get(), capture.toString());
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path source = Path.of("java_reference.java");
+        int threads = Runtime.getRuntime().availableProcessors();
+        long timeoutSeconds = 600;
+        boolean quick = false;
+        boolean verbose = false;
+        Set<String> selected = new HashSet<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--threads" -> threads = Integer.parseInt(args[++i]);
+                case "--timeout" -> timeoutSeconds = Long.parseLong(args[++i]);
+                case "--quick" -> quick = true;
+                case "--verbose" -> verbose = true;
+                default -> {
+                    if (args[i].endsWith(".java")) {
+                        source = Path.of(args[i]);
+                    } else {
+                        selected.add(args[i]);
+                    }
+                }
+            }
+        }
+
+        long compileStart = System.nanoTime();
+        Map<String, byte[]> classes = compile(source);
+        System.out.printf("Compiled %s in memory: %d classes in %d ms%n", source, classes.size(),
+                (System.nanoTime() - compileStart) / 1_000_000);
+
+        // Chapters in source order: top-level classes (declared at column 0) with a main method
+        MemoryClassLoader loader = new MemoryClassLoader(classes, ReferenceRunner.class.getClassLoader());
+        List<Class<?>> chapters = new ArrayList<>();
+        Matcher declaration = Pattern.compile("(?m)^(?:public\\s+|final\\s+|abstract\\s+)*class\\s+(\\w+)")
+                .matcher(Files.readString(source));
+        while (declaration.find()) {
+            String name = declaration.group(1);
+            if (name.equals("ReferenceRunner") || (!selected.isEmpty() && !selected.contains(name))) {
+                continue;
+            }
+            Class<?> chapter = loader.loadClass(name);
+            try {
+                Method main = chapter.getMethod("main", String[].class);
+                if (Modifier.isStatic(main.getModifiers())) {
+                    chapters.add(chapter);
+                }
+            } catch (NoSuchMethodException e) {
+                // Not a runnable chapter
+            }
+        }
+
+        PrintStream console = System.out;
+        System.setOut(routingStream(console));
+        System.setErr(routingStream(System.err));
+
+        long suiteStart = System.nanoTime();
+        Map<Class<?>, Future<Result>> parallel = new LinkedHashMap<>();
+        Map<Class<?>, Callable<Result>> serial = new LinkedHashMap<>();
+        Map<Class<?>, Result> resultsByChapter = new LinkedHashMap<>();
+        AtomicInteger finished = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (Class<?> chapter : chapters) {
+            String[] arguments = quick ? QUICK_ARGUMENTS.getOrDefault(chapter.getName(), new String[0]) : new String[0];
+            long timeout = timeoutSeconds;
+            Callable<Result> task = () -> {
+                Result result = runChapter(chapter, arguments, timeout);
+                console.printf("[%2d/%d] %-30s %s%n", finished.incrementAndGet(), chapters.size(),
+                        result.chapter(), result.status());
+                return result;
+            };
+            resultsByChapter.put(chapter, null); // Keeps the source order for the summary
+            if (SERIAL_CHAPTERS.contains(chapter.getName())) {
+                serial.put(chapter, task);
+            } else {
+                parallel.put(chapter, executor.submit(task));
+            }
+        }
+
+        for (Map.Entry<Class<?>, Future<Result>> entry : parallel.entrySet()) {
+            resultsByChapter.put(entry.getKey(), entry.getValue().get());
+        }
+        executor.shutdown();
+        for (Map.Entry<Class<?>, Callable<Result>> entry : serial.entrySet()) {
+            resultsByChapter.put(entry.getKey(), entry.getValue().call()); // Nothing else running
+        }
+        List<Result> results = new ArrayList<>(resultsByChapter.values());
+        long suiteNanos = System.nanoTime() - suiteStart;
+
+        console.printf("%n%-30s %-8s %10s %16s%n", "Chapter", "Status", "Wall ms", "Allocated MB");
+        int failed = 0;
+        for (Result result : results) {
+            String status = result.status().startsWith("FAIL") ? "FAIL" : result.status();
+            failed += status.equals("PASS") ? 0 : 1;
+            console.printf("%-30s %-8s %10d %16.1f%n", result.chapter(), status,
+                    result.wallNanos() / 1_000_000, result.allocatedBytes() / (1024.0 * 1024.0));
+        }
+        console.printf("%d chapters, %d failed, %d ms total on %d threads%n",
+                results.size(), failed, suiteNanos / 1_000_000, threads);
+
+        for (Result result : results) {
+            if (verbose || !result.status().equals("PASS")) {
+                console.printf("%n--- %s (%s) ---%n%s", result.chapter(), result.status(), result.output());
+            }
+        }
+        System.exit(failed == 0 ? 0 : 1); // Also ends chapters that timed out
+    }
+}